@@ -0,0 +1,122 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/**
+ * One program on its way through scanning, parsing, resolving and the passes
+ * in {@link #analyze}, with the {@link Resolution} the interpreter needs to run
+ * it. <br />
+ * <br />
+ *
+ * The REPL compiles every line into the same compilation, so that later lines
+ * resolve against the earlier ones and the {@link Optimizer} keeps what it
+ * learned about them. Lazily parsed function bodies come back to the
+ * compilation they were declared in.
+ */
+final class Compilation {
+  final LoxEngine engine;
+  final Resolution resolution;
+  final ErrorReporter reporter;
+
+  /**
+   * Whether the compilation is the command line's own. Only that one parses
+   * function bodies lazily: one that {@link LoxEngine#compile} makes has handed
+   * its errors to the caller long before a body is first called, on whichever
+   * thread of whichever run calls it, so every body is parsed up front. Only
+   * that one echoes comments as well.
+   */
+  final boolean commandLine;
+  private final Optimizer optimizer;
+  private TypeInference types = null;
+
+  /**
+   * The command line's compilation.
+   */
+  Compilation(LoxEngine engine, ErrorReporter reporter) {
+    this(engine, reporter, new Resolution(engine.lazyFunctions), true);
+  }
+
+  /**
+   * Compiles into a resolution of the caller's, which may go on with a program
+   * that an earlier compilation started, like the one a {@link Snapshot} was
+   * taken of.
+   */
+  Compilation(LoxEngine engine, ErrorReporter reporter, Resolution resolution, boolean commandLine) {
+    this.engine = engine;
+    this.resolution = resolution;
+    this.reporter = reporter;
+    this.commandLine = commandLine;
+    this.optimizer = new Optimizer(resolution);
+    if (!engine.hoisting)
+      optimizer.disableHoisting();
+  }
+
+  /**
+   * @return whether function bodies are only parsed on their first call
+   */
+  boolean lazyFunctions() {
+    return commandLine && engine.lazyFunctions;
+  }
+
+  /**
+   * @return the optimizer, whose names a {@link Snapshot} keeps along with the
+   *         trees
+   */
+  Optimizer optimizer() {
+    return optimizer;
+  }
+
+  /**
+   * @param source the code
+   * @return the statements, which are only complete if the reporter has no new
+   *         errors
+   */
+  List<Stmt> compile(String source) {
+    int errors = reporter.count();
+
+    Scanner scanner = new Scanner(source, reporter, commandLine);
+    List<Token> tokens = scanner.scanTokens();
+
+    Parser parser = new Parser(tokens, this);
+    List<Stmt> statements = parser.parse();
+
+    // Stop if there was a syntax error.
+    if (reporter.count() > errors)
+      return statements;
+
+    if (!engine.fusedResolve) {
+      Resolver resolver = new Resolver(this);
+      resolver.resolve(statements);
+
+      // Stop if there was a resolution error.
+      if (reporter.count() > errors)
+        return statements;
+    }
+
+    analyze(statements);
+    return statements;
+  }
+
+  /**
+   * Runs the passes that annotate a resolved tree. Lazily parsed function bodies
+   * go through here as well once they are parsed.
+   *
+   * @param statements resolved statements
+   */
+  void analyze(List<Stmt> statements) {
+    if (engine.staticTypes || engine.inferTypes) {
+      types = new TypeInference();
+      types.infer(statements);
+    }
+    if (engine.optimize)
+      optimizer.optimize(statements);
+  }
+
+  /**
+   * @return the type inference of the last {@link #analyze}, or null if it did
+   *         not run
+   */
+  TypeInference types() {
+    return types;
+  }
+}
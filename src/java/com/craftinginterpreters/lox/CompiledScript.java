@@ -0,0 +1,49 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A program that {@link LoxEngine#compile} has scanned, parsed, resolved and
+ * optimized, ready to run any number of times on any number of threads. <br />
+ * <br />
+ *
+ * Nothing in it changes after compiling. Runs only read the tree and its
+ * {@link Resolution} and keep their variables in interpreters of their own.
+ * The one thing a run writes into the tree is the {@link PropertyCache} of a
+ * property access, which is built to be shared.
+ */
+public final class CompiledScript {
+  final List<Stmt> statements;
+  final Resolution resolution;
+
+  /**
+   * The directory that the imports of the program are relative to, or null for
+   * the working directory.
+   */
+  final Path directory;
+  private final List<String> errors;
+
+  CompiledScript(List<Stmt> statements, Resolution resolution, Path directory, List<String> errors) {
+    this.statements = Collections.unmodifiableList(statements);
+    this.resolution = resolution;
+    this.directory = directory;
+    this.errors = Collections.unmodifiableList(errors);
+  }
+
+  /**
+   * @return whether the source had syntax or resolution errors, in which case
+   *         the script cannot run
+   */
+  public boolean hasErrors() {
+    return !errors.isEmpty();
+  }
+
+  /**
+   * @return the compile errors, formatted like the command line prints them
+   */
+  public List<String> errors() {
+    return errors;
+  }
+}
@@ -1,9 +1,26 @@
 package com.craftinginterpreters.lox;
 
+import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
 
-class Environment {
+class Environment implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * A variable shared between the scope that declares it and the closures that
+   * capture it, because one of them assigns it. See {@link Scopes}.
+   */
+  static final class Cell implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    Object value;
+
+    Cell(Object value) {
+      this.value = value;
+    }
+  }
+
   final Environment enclosing;
   private final Map<String, Object> values = new HashMap<>();
 
@@ -41,13 +58,34 @@ class Environment {
   }
 
   /**
-   * Define a variable with name and value
+   * Define a variable with name and value. Defining a shared variable again
+   * stores the value in its cell, so closures that captured it see the change.
    * 
    * @param name  the name of the variable
    * @param value the value of the variable
    */
   void define(String name, Object value) {
-    values.put(name, value);
+    Object previous = values.get(name);
+    if (previous instanceof Cell) {
+      ((Cell) previous).value = value;
+    } else {
+      values.put(name, value);
+    }
+  }
+
+  /**
+   * Define a variable that closures share with this scope.
+   * 
+   * @param name  the name of the variable
+   * @param value the value of the variable
+   */
+  void defineShared(String name, Object value) {
+    Object previous = values.get(name);
+    if (previous instanceof Cell) {
+      ((Cell) previous).value = value;
+    } else {
+      values.put(name, new Cell(value));
+    }
   }
 
   Environment ancestor(int distance) {
@@ -60,11 +98,22 @@ class Environment {
   }
 
   Object getAt(int distance, String name) {
+    Object value = ancestor(distance).values.get(name);
+    if (value instanceof Cell)
+      return ((Cell) value).value;
+    return value;
+  }
+
+  /**
+   * @return the variable as it is stored, which for a shared variable is its
+   *         cell, so that a closure can capture it
+   */
+  Object captureAt(int distance, String name) {
     return ancestor(distance).values.get(name);
   }
 
   void assignAt(int distance, Token name, Object value) {
-    ancestor(distance).values.put(name.lexeme, value);
+    ancestor(distance).define(name.lexeme, value);
   }
 
 }
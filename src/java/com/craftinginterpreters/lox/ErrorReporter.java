@@ -0,0 +1,116 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the errors of compiling and running a program, each as the message
+ * the command line prints for it. <br />
+ * <br />
+ *
+ * The command line passes its {@link OutputBuffer} so that every error is also
+ * printed to standard error as soon as it is reported, after any output that
+ * came before it. The {@link LoxServer} prints them to the error stream of its
+ * client instead. A {@link LoxEngine} only collects them and hands them back.
+ */
+class ErrorReporter {
+  private final OutputBuffer echo;
+  private final PrintStream err;
+  private final List<String> errors = new ArrayList<>();
+  private boolean hadError = false;
+  private boolean hadRuntimeError = false;
+
+  ErrorReporter() {
+    this(null);
+  }
+
+  /**
+   * @param echo the output to flush before printing each error, or null to only
+   *             collect them
+   */
+  ErrorReporter(OutputBuffer echo) {
+    this(echo, System.err);
+  }
+
+  /**
+   * @param echo the output to flush before printing each error
+   * @param err  where to print errors
+   */
+  ErrorReporter(OutputBuffer echo, PrintStream err) {
+    this.echo = echo;
+    this.err = err;
+  }
+
+  /**
+   * @param line    Which line in the code the error is on
+   * @param message Error message
+   */
+  void error(int line, String message) {
+    report(line, "", message);
+  }
+
+  void error(Token token, String message) {
+    if (token.type == TokenType.EOF) {
+      report(token.line, " at end", message);
+    } else {
+      report(token.line, " at '" + token.lexeme + "'", message);
+    }
+  }
+
+  private synchronized void report(int line, String where, String message) {
+    add("[line " + line + "] Error" + where + ": " + message);
+    hadError = true;
+  }
+
+  /**
+   * Reports the compile errors of a module that the program imported, each
+   * after the path of the module.
+   */
+  synchronized void moduleErrors(Modules.CompileError error) {
+    for (String message : error.errors) {
+      add(error.module + ": " + message);
+    }
+    hadError = true;
+  }
+
+  synchronized void runtimeError(RuntimeError error) {
+    add(error.getMessage() + "\n[line " + error.token.line + "]");
+    hadRuntimeError = true;
+  }
+
+  private void add(String message) {
+    errors.add(message);
+    if (echo != null) {
+      echo.flush();
+      err.println(message);
+    }
+  }
+
+  synchronized boolean hadError() {
+    return hadError;
+  }
+
+  synchronized boolean hadRuntimeError() {
+    return hadRuntimeError;
+  }
+
+  /**
+   * @return how many errors were reported so far
+   */
+  synchronized int count() {
+    return errors.size();
+  }
+
+  synchronized List<String> errors() {
+    return new ArrayList<>(errors);
+  }
+
+  /**
+   * Forgets that a compile error happened, so the REPL can go on with the next
+   * line.
+   */
+  synchronized void reset() {
+    hadError = false;
+  }
+}
@@ -0,0 +1,131 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The outermost environment, which every task of a program shares. <br />
+ * <br />
+ *
+ * The variables live in a {@link ConcurrentHashMap}, which locks one bin at a
+ * time for writes and not at all for reads, so tasks can read and assign
+ * globals at the same time without corrupting anything. A read and a later
+ * write are still two steps, and tasks that both increment a global can lose
+ * an update. The map has no room for null, so nil is stored as {@link #NIL}.
+ * <br />
+ * <br />
+ *
+ * Every module a run imports has globals of its own, which are its namespace.
+ * They know the {@link Resolution} of the code they belong to, so that a
+ * function runs with that of its module whoever calls it.
+ */
+final class Globals extends Environment {
+  private static final long serialVersionUID = 1L;
+
+  private static final Object NIL = new Object();
+
+  private final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<>();
+
+  /**
+   * The resolution of the code these are the globals of.
+   */
+  final Resolution resolution;
+
+  /**
+   * The globals of the script the run started with, which own the modules it
+   * imports and the writers it opens.
+   */
+  final Globals root;
+  private final Map<Path, LoxModule> modules;
+
+  /**
+   * The directory that the imports of the code are relative to, or null for
+   * the working directory.
+   */
+  private Path directory = null;
+
+  Globals(Resolution resolution) {
+    this.resolution = resolution;
+    this.root = this;
+    this.modules = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * @param importer the globals of the code that imported the module these are
+   *                 the namespace of
+   */
+  Globals(Resolution resolution, Globals importer) {
+    this.resolution = resolution;
+    this.root = importer.root;
+    this.modules = null;
+  }
+
+  @Override
+  Object get(Token name) {
+    Object value = values.get(name.lexeme);
+    if (value == null)
+      throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    return value == NIL ? null : value;
+  }
+
+  @Override
+  void assign(Token name, Object value) {
+    if (values.replace(name.lexeme, value == null ? NIL : value) == null)
+      throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+  }
+
+  @Override
+  void define(String name, Object value) {
+    values.put(name, value == null ? NIL : value);
+  }
+
+  /**
+   * @return the variables and their values, in no particular order
+   */
+  Map<String, Object> variables() {
+    Map<String, Object> variables = new HashMap<>();
+    values.forEach((name, value) -> variables.put(name, value == NIL ? null : value));
+    return variables;
+  }
+
+  /**
+   * @return the module of the run with the file, which is created unless some
+   *         code of the run imported the file before
+   */
+  LoxModule module(Path path, Function<Path, LoxModule> create) {
+    return root.modules.computeIfAbsent(path, create);
+  }
+
+  /**
+   * Makes the imports of the code relative to a directory, the one of the file
+   * the code is in.
+   */
+  void useDirectory(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * @return where a file that the code imports is
+   */
+  Path resolve(String path) {
+    return directory == null ? Paths.get(path) : directory.resolve(path);
+  }
+
+  /**
+   * @return the modules that the run imported so far
+   */
+  Collection<LoxModule> modules() {
+    return root.modules.values();
+  }
+
+  @Override
+  void defineShared(String name, Object value) {
+    // Closures only share local variables.
+    define(name, value);
+  }
+}
@@ -1,6 +1,12 @@
 package com.craftinginterpreters.lox;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -9,11 +15,62 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   private static class BreakError extends RuntimeException {
   }
 
-  final Environment globals = new Environment();
-  private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>();
+  final Globals globals;
+  private Environment environment;
+  private final Resolution resolution;
 
-  Interpreter() {
+  /**
+   * Where print statements go.
+   */
+  private final OutputBuffer out;
+
+  /**
+   * The values of the hoisted expressions of the innermost running loop that
+   * has any, see {@link Optimizer}.
+   */
+  private Object[] hoisted = null;
+  private static final Object UNSET = new Object();
+
+  /**
+   * The generator whose body this interpreter runs, which is where yield hands
+   * its values, or null.
+   */
+  private final LoxGenerator generator;
+
+  /**
+   * Trust the types from {@link TypeInference}: skip the operand checks and
+   * keep intermediate numbers as primitive doubles.
+   */
+  private boolean typedArithmetic = false;
+
+  /**
+   * Run a piece of a parallelMap or parallelReduce, which must not call a
+   * function that assigns variables declared outside it, see {@link Parallel}.
+   */
+  private boolean parallel = false;
+
+  /**
+   * The compiled modules that imports load, which belong to the engine.
+   */
+  private Modules modules = null;
+
+  Interpreter(Resolution resolution, OutputBuffer out) {
+    this(resolution, out, new Globals(resolution), null);
+    defineNatives(globals);
+  }
+
+  /**
+   * @param globals globals that already hold the natives, like those restored
+   *                from a {@link Snapshot}
+   */
+  Interpreter(Resolution resolution, OutputBuffer out, Globals globals) {
+    this(resolution, out, globals, null);
+  }
+
+  /**
+   * Defines the native functions that every program starts out with.
+   */
+  static void defineNatives(Environment globals) {
     globals.define("clock", new LoxCallable() {
       @Override
       public int arity() {
@@ -22,7 +79,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
       @Override
       public Object call(Interpreter interpreter, List<Object> arguments) {
-        return (double) System.currentTimeMillis() / 1000.0;
+        return Values.number(System.currentTimeMillis() / 1000.0);
       }
 
       @Override
@@ -30,15 +87,242 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return "<native fn>";
       }
     });
+
+    globals.define("Array", new NativeFunction(1, arguments -> {
+      int size = NativeFunction.integer(arguments.get(0), "Array");
+      if (size < 0)
+        throw new NativeError("Array size can't be negative.");
+      return new LoxArray(size);
+    }));
+    globals.define("len", new NativeFunction(1, arguments -> {
+      Object value = arguments.get(0);
+      if (value instanceof CharSequence)
+        return Values.number(((CharSequence) value).length());
+      if (value instanceof LoxMap)
+        return Values.number(((LoxMap) value).size());
+      if (value instanceof LoxBuffer)
+        return Values.number(((LoxBuffer) value).size());
+      return Values.number(LoxArray.cast(value, "len").size());
+    }));
+    globals.define("push", new NativeFunction(2, arguments -> {
+      LoxArray.cast(arguments.get(0), "push").push(arguments.get(1));
+      return null;
+    }));
+    globals.define("pop", new NativeFunction(1, arguments -> LoxArray.cast(arguments.get(0), "pop").pop()));
+    globals.define("fill", new NativeFunction(2, arguments -> {
+      LoxArray.cast(arguments.get(0), "fill").fill(arguments.get(1));
+      return null;
+    }));
+    globals.define("copy", new NativeFunction(5, arguments -> {
+      if (arguments.get(0) instanceof LoxBuffer) {
+        LoxBuffer.copy(LoxBuffer.cast(arguments.get(0), "copy"), NativeFunction.integer(arguments.get(1), "copy"),
+            LoxBuffer.cast(arguments.get(2), "copy"), NativeFunction.integer(arguments.get(3), "copy"),
+            NativeFunction.integer(arguments.get(4), "copy"));
+        return null;
+      }
+      LoxArray.copy(LoxArray.cast(arguments.get(0), "copy"), NativeFunction.integer(arguments.get(1), "copy"),
+          LoxArray.cast(arguments.get(2), "copy"), NativeFunction.integer(arguments.get(3), "copy"),
+          NativeFunction.integer(arguments.get(4), "copy"));
+      return null;
+    }));
+    globals.define("sort", new NativeFunction(1, arguments -> {
+      LoxArray.cast(arguments.get(0), "sort").sort();
+      return null;
+    }));
+    globals.define("sum", new NativeFunction(1, arguments -> Vectors.sum(arguments.get(0))));
+    globals.define("add", new NativeFunction(2, arguments -> Vectors.add(arguments.get(0), arguments.get(1))));
+    globals.define("multiply",
+        new NativeFunction(2, arguments -> Vectors.multiply(arguments.get(0), arguments.get(1))));
+    globals.define("dot", new NativeFunction(2, arguments -> Vectors.dot(arguments.get(0), arguments.get(1))));
+    globals.define("min", new NativeFunction(1, arguments -> Vectors.min(arguments.get(0))));
+    globals.define("max", new NativeFunction(1, arguments -> Vectors.max(arguments.get(0))));
+    globals.define("axpy", new NativeFunction(3, arguments -> {
+      Vectors.axpy(arguments.get(0), arguments.get(1), arguments.get(2));
+      return null;
+    }));
+
+    globals.define("Buffer",
+        new NativeFunction(1, arguments -> LoxBuffer.allocate(NativeFunction.integer(arguments.get(0), "Buffer"))));
+    globals.define("mapBuffer", new NativeFunction(2, arguments -> LoxBuffer.map(path(arguments.get(0), "mapBuffer"),
+        NativeFunction.integer(arguments.get(1), "mapBuffer"))));
+    globals.define("getDouble",
+        new NativeFunction(2, arguments -> LoxBuffer.cast(arguments.get(0), "getDouble").getDouble(arguments.get(1))));
+    globals.define("setDouble", new NativeFunction(3, arguments -> {
+      LoxBuffer.cast(arguments.get(0), "setDouble").setDouble(arguments.get(1), arguments.get(2));
+      return null;
+    }));
+    globals.define("getInt",
+        new NativeFunction(2, arguments -> LoxBuffer.cast(arguments.get(0), "getInt").getInt(arguments.get(1))));
+    globals.define("setInt", new NativeFunction(3, arguments -> {
+      LoxBuffer.cast(arguments.get(0), "setInt").setInt(arguments.get(1), arguments.get(2));
+      return null;
+    }));
+    globals.define("getByte",
+        new NativeFunction(2, arguments -> LoxBuffer.cast(arguments.get(0), "getByte").getByte(arguments.get(1))));
+    globals.define("setByte", new NativeFunction(3, arguments -> {
+      LoxBuffer.cast(arguments.get(0), "setByte").setByte(arguments.get(1), arguments.get(2));
+      return null;
+    }));
+    globals.define("slice", new NativeFunction(3, arguments -> LoxBuffer.cast(arguments.get(0), "slice")
+        .slice(NativeFunction.integer(arguments.get(1), "slice"), NativeFunction.integer(arguments.get(2), "slice"))));
+
+    globals.define("Map", new NativeFunction(0, arguments -> new LoxMap()));
+    globals.define("has", new NativeFunction(2, arguments -> LoxMap.cast(arguments.get(0), "has").has(arguments.get(1))));
+    globals.define("remove",
+        new NativeFunction(2, arguments -> LoxMap.cast(arguments.get(0), "remove").remove(arguments.get(1))));
+    globals.define("keys", new NativeFunction(1, arguments -> LoxMap.cast(arguments.get(0), "keys").keys()));
+    globals.define("values", new NativeFunction(1, arguments -> LoxMap.cast(arguments.get(0), "values").values()));
+
+    globals.define("range", new NativeFunction(2, arguments -> new LoxRange(
+        NativeFunction.number(arguments.get(0), "range"), NativeFunction.number(arguments.get(1), "range"))));
+    globals.define("lines", new NativeFunction(1, arguments -> MappedFile.lines(readable(arguments.get(0), "lines"))));
+    globals.define("records", new NativeFunction(2, arguments -> MappedFile.records(
+        readable(arguments.get(0), "records"), NativeFunction.integer(arguments.get(1), "records"))));
+    globals.define("numbers",
+        new NativeFunction(1, arguments -> MappedFile.numbers(readable(arguments.get(0), "numbers"))));
+    globals.define("writer", new NativeFunction(1,
+        (interpreter, arguments) -> LoxWriter.open(interpreter.globals.root, path(arguments.get(0), "writer"))));
+    globals.define("writeLine", new NativeFunction(2, arguments -> {
+      LoxWriter.cast(arguments.get(0), "writeLine").writeLine(arguments.get(1));
+      return null;
+    }));
+    globals.define("deleteFile", new NativeFunction(1, arguments -> {
+      Path path = path(arguments.get(0), "deleteFile");
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException error) {
+        throw new NativeError("Can't delete file '" + path + "'.");
+      }
+      return null;
+    }));
+    globals.define("close", new NativeFunction(1, arguments -> {
+      if (arguments.get(0) instanceof LoxChannel) {
+        ((LoxChannel) arguments.get(0)).close();
+      } else if (arguments.get(0) instanceof LoxWriter) {
+        ((LoxWriter) arguments.get(0)).close();
+      } else {
+        throw new NativeError("Expected a writer or channel argument to close().");
+      }
+      return null;
+    }));
+
+    globals.define("spawn",
+        new NativeFunction(1, (interpreter, arguments) -> LoxTask.spawn(arguments.get(0), interpreter)));
+    globals.define("await", new NativeFunction(1, arguments -> LoxTask.cast(arguments.get(0), "await").await()));
+
+    globals.define("parallelMap", new NativeFunction(2,
+        (interpreter, arguments) -> Parallel.map(interpreter, arguments.get(0), arguments.get(1))));
+    globals.define("parallelReduce", new NativeFunction(3, (interpreter,
+        arguments) -> Parallel.reduce(interpreter, arguments.get(0), arguments.get(1), arguments.get(2))));
+
+    globals.define("Channel",
+        new NativeFunction(1, arguments -> new LoxChannel(NativeFunction.integer(arguments.get(0), "Channel"))));
+    globals.define("send", new NativeFunction(2, arguments -> {
+      LoxChannel.cast(arguments.get(0), "send").send(arguments.get(1));
+      return null;
+    }));
+    globals.define("receive", new NativeFunction(1, arguments -> LoxChannel.cast(arguments.get(0), "receive").receive()));
+    globals.define("poll",
+        new NativeFunction(1, arguments -> LoxChannel.select(LoxArray.cast(arguments.get(0), "poll"), false, "poll")));
+    globals.define("select",
+        new NativeFunction(1, arguments -> LoxChannel.select(LoxArray.cast(arguments.get(0), "select"), true, "select")));
+  }
+
+  private static Path path(Object value, String function) {
+    if (!(value instanceof String))
+      throw new NativeError("Expected a string argument to " + function + "().");
+    return Paths.get((String) value);
+  }
+
+  private static Path readable(Object value, String function) {
+    Path path = path(value, function);
+    if (!Files.isReadable(path))
+      throw new NativeError("Can't read file '" + path + "'.");
+    return path;
+  }
+
+  private Interpreter(Resolution resolution, OutputBuffer out, Globals globals, LoxGenerator generator) {
+    this.resolution = resolution;
+    this.out = out;
+    this.globals = globals;
+    this.environment = globals;
+    this.generator = generator;
   }
 
-  void interpret(List<Stmt> statements) {
+  /**
+   * Every thread that runs Lox code needs an interpreter of its own, since the
+   * current environment and the hoisted values are those of the code running
+   * on it.
+   *
+   * @param generator the generator whose body the new interpreter runs, or null
+   * @return an interpreter for another thread that runs the same program with
+   *         the same globals
+   */
+  Interpreter fork(LoxGenerator generator) {
+    Interpreter fork = new Interpreter(resolution, out, globals, generator);
+    fork.typedArithmetic = typedArithmetic;
+    fork.parallel = parallel;
+    fork.modules = modules;
+    return fork;
+  }
+
+  /**
+   * @return an interpreter for a worker of {@link Parallel}
+   */
+  Interpreter forkParallel() {
+    Interpreter fork = fork(null);
+    fork.parallel = true;
+    return fork;
+  }
+
+  /**
+   * @param home the globals of the module whose code is about to run on this
+   *             thread
+   * @return this interpreter if it runs the code of that module already, or
+   *         one for this thread that does
+   */
+  Interpreter enter(Globals home) {
+    if (home == globals)
+      return this;
+
+    Interpreter entered = new Interpreter(home.resolution, out, home, generator);
+    entered.typedArithmetic = typedArithmetic;
+    entered.parallel = parallel;
+    entered.modules = modules;
+    return entered;
+  }
+
+  void useStaticTypes() {
+    typedArithmetic = true;
+  }
+
+  void useModules(Modules modules) {
+    this.modules = modules;
+  }
+
+  /**
+   * @return whether calling the callable may assign a variable declared outside
+   *         it, which a class does if its initializer does
+   */
+  boolean assignsOuter(LoxCallable callable) {
+    if (callable instanceof LoxClass)
+      callable = ((LoxClass) callable).findMethod("init");
+    if (callable instanceof LoxFunction) {
+      LoxFunction function = (LoxFunction) callable;
+      return function.home().resolution.assignsOuter(function.declaration());
+    }
+    return false;
+  }
+
+  void interpret(List<Stmt> statements, ErrorReporter reporter) {
     try {
       for (Stmt statement : statements) {
         execute(statement);
       }
+    } catch (Modules.CompileError error) {
+      reporter.moduleErrors(error);
     } catch (RuntimeError error) {
-      Lox.runtimeError(error);
+      reporter.runtimeError(error);
     } catch (BreakError error) {
       return;
     }
@@ -46,48 +330,104 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitBinaryExpr(Expr.Binary expr) {
+    if (typedArithmetic && isNumber(expr.left) && isNumber(expr.right)) {
+      switch (expr.operator.type) {
+      case GREATER:
+        return evaluateNumber(expr.left) > evaluateNumber(expr.right);
+      case GREATER_EQUAL:
+        return evaluateNumber(expr.left) >= evaluateNumber(expr.right);
+      case LESS:
+        return evaluateNumber(expr.left) < evaluateNumber(expr.right);
+      case LESS_EQUAL:
+        return evaluateNumber(expr.left) <= evaluateNumber(expr.right);
+      case MINUS:
+      case PLUS:
+      case SLASH:
+      case STAR:
+        return Values.number(arithmetic(expr));
+      }
+    }
+
     Object left = evaluate(expr.left);
     Object right = evaluate(expr.right);
 
+    if (left instanceof Long && right instanceof Long) {
+      return integerOperation(expr.operator, (long) left, (long) right);
+    }
+
     switch (expr.operator.type) {
     case GREATER:
       checkNumberOperands(expr.operator, left, right);
-      return (double) left > (double) right;
+      return Values.toDouble(left) > Values.toDouble(right);
     case GREATER_EQUAL:
       checkNumberOperands(expr.operator, left, right);
-      return (double) left >= (double) right;
+      return Values.toDouble(left) >= Values.toDouble(right);
     case LESS:
       checkNumberOperands(expr.operator, left, right);
-      return (double) left < (double) right;
+      return Values.toDouble(left) < Values.toDouble(right);
     case LESS_EQUAL:
       checkNumberOperands(expr.operator, left, right);
-      return (double) left <= (double) right;
+      return Values.toDouble(left) <= Values.toDouble(right);
     case BANG_EQUAL:
       return !isEqual(left, right);
     case EQUAL_EQUAL:
       return isEqual(left, right);
     case MINUS:
       checkNumberOperands(expr.operator, left, right);
-      return (double) left - (double) right;
+      return Values.number(Values.toDouble(left) - Values.toDouble(right));
     case PLUS:
-      if (left instanceof Double && right instanceof Double) {
-        return (double) left + (double) right;
+      if (Values.isNumber(left) && Values.isNumber(right)) {
+        return Values.number(Values.toDouble(left) + Values.toDouble(right));
       }
 
-      if (left instanceof String || right instanceof String) {
-        return stringify(left) + stringify(right);
+      if (left instanceof CharSequence || right instanceof CharSequence) {
+        return LoxString.concat(asText(left), asText(right));
       }
       
       throw new RuntimeError(expr.operator, "Operands must be between a number and a string or both");
     case SLASH:
       checkNumberOperands(expr.operator, left, right);
-      if ((double) right != 0) {
-        return (double) left / (double) right;
+      if (Values.toDouble(right) != 0) {
+        return Values.number(Values.toDouble(left) / Values.toDouble(right));
       }
       throw new RuntimeError(expr.operator, "Cannot devide by zero");
     case STAR:
       checkNumberOperands(expr.operator, left, right);
-      return (double) left * (double) right;
+      return Values.number(Values.toDouble(left) * Values.toDouble(right));
+    }
+
+    // Unreachable.
+    return null;
+  }
+
+  /**
+   * Binary operators on two integers, without going through doubles.
+   */
+  private Object integerOperation(Token operator, long left, long right) {
+    switch (operator.type) {
+    case GREATER:
+      return left > right;
+    case GREATER_EQUAL:
+      return left >= right;
+    case LESS:
+      return left < right;
+    case LESS_EQUAL:
+      return left <= right;
+    case BANG_EQUAL:
+      return left != right;
+    case EQUAL_EQUAL:
+      return left == right;
+    case MINUS:
+      return Values.subtract(left, right);
+    case PLUS:
+      return Values.add(left, right);
+    case SLASH:
+      if (right != 0) {
+        return Values.divide(left, right);
+      }
+      throw new RuntimeError(operator, "Cannot devide by zero");
+    case STAR:
+      return Values.multiply(left, right);
     }
 
     // Unreachable.
@@ -96,11 +436,41 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitCallExpr(Expr.Call expr) {
-    Object callee = evaluate(expr.callee);
+    // A method called right where it is looked up gets its receiver passed
+    // along, instead of going through a bound method.
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      Object object = evaluate(get.object);
+      if (object instanceof LoxModule)
+        return call(expr, ((LoxModule) object).get(get.name, this), null);
+      if (!(object instanceof LoxInstance))
+        throw new RuntimeError(get.name, "Only instances have properties.");
+
+      LoxInstance instance = (LoxInstance) object;
+      LoxFunction method = instance.method(get.name, get.cache);
+      if (method != null)
+        return call(expr, method, instance);
+      return call(expr, instance.get(get.name, get.cache), null);
+    }
 
+    if (expr.callee instanceof Expr.Super) {
+      Expr.Super expression = (Expr.Super) expr.callee;
+      return call(expr, superMethod(expression), (LoxInstance) evaluate(expression.receiver));
+    }
+
+    return call(expr, evaluate(expr.callee), null);
+  }
+
+  /**
+   * @param receiver the instance to call a method on, or null
+   */
+  private Object call(Expr.Call expr, Object callee, LoxInstance receiver) {
+    // Native functions only ever see flat strings.
+    boolean flatten = !(callee instanceof LoxFunction);
     List<Object> arguments = new ArrayList<>();
     for (Expr argument : expr.arguments) {
-      arguments.add(evaluate(argument));
+      Object value = evaluate(argument);
+      arguments.add(flatten ? LoxString.flatten(value) : value);
     }
 
     if (!(callee instanceof LoxCallable)) {
@@ -112,8 +482,31 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       throw new RuntimeError(expr.paren,
           "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
     }
+    if (parallel && assignsOuter(function)) {
+      throw new RuntimeError(expr.paren,
+          "Can't call " + function + " in parallel, since it assigns variables declared outside it.");
+    }
 
-    return function.call(this, arguments);
+    try {
+      if (receiver != null)
+        return ((LoxFunction) function).call(this, arguments, receiver);
+      return function.call(this, arguments);
+    } catch (NativeError error) {
+      throw new RuntimeError(expr.paren, error.getMessage());
+    }
+  }
+
+  @Override
+  public Object visitGetExpr(Expr.Get expr) {
+    Object object = evaluate(expr.object);
+    if (object instanceof LoxInstance) {
+      return ((LoxInstance) object).get(expr.name, expr.cache);
+    }
+    if (object instanceof LoxModule) {
+      return ((LoxModule) object).get(expr.name, this);
+    }
+
+    throw new RuntimeError(expr.name, "Only instances have properties.");
   }
 
   @Override
@@ -122,6 +515,43 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return evaluate(expr.expression);
   }
 
+  @Override
+  public Object visitIndexExpr(Expr.Index expr) {
+    Object object = evaluate(expr.object);
+    Object index = evaluate(expr.index);
+
+    try {
+      if (object instanceof LoxArray)
+        return ((LoxArray) object).get(index);
+      if (object instanceof LoxMap)
+        return ((LoxMap) object).get(index);
+    } catch (NativeError error) {
+      throw new RuntimeError(expr.bracket, error.getMessage());
+    }
+    throw new RuntimeError(expr.bracket, "Only arrays and maps can be indexed.");
+  }
+
+  @Override
+  public Object visitIndexSetExpr(Expr.IndexSet expr) {
+    Object object = evaluate(expr.object);
+    Object index = evaluate(expr.index);
+    Object value = evaluate(expr.value);
+
+    try {
+      if (object instanceof LoxArray) {
+        ((LoxArray) object).set(index, value);
+        return value;
+      }
+      if (object instanceof LoxMap) {
+        ((LoxMap) object).set(index, value);
+        return value;
+      }
+    } catch (NativeError error) {
+      throw new RuntimeError(expr.bracket, error.getMessage());
+    }
+    throw new RuntimeError(expr.bracket, "Only arrays and maps can be indexed.");
+  }
+
   @Override
   public Object visitLiteralExpr(Expr.Literal expr) {
     // TODO Auto-generated method stub
@@ -143,8 +573,44 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return evaluate(expr.right);
   }
 
+  @Override
+  public Object visitSetExpr(Expr.Set expr) {
+    Object object = evaluate(expr.object);
+
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(expr.name, "Only instances have fields.");
+    }
+
+    Object value = evaluate(expr.value);
+    ((LoxInstance) object).set(expr.name, value, expr.cache);
+    return value;
+  }
+
+  @Override
+  public Object visitSuperExpr(Expr.Super expr) {
+    return superMethod(expr).bind((LoxInstance) evaluate(expr.receiver));
+  }
+
+  private LoxFunction superMethod(Expr.Super expr) {
+    LoxClass superclass = (LoxClass) lookUpVariable(expr.keyword, expr);
+    LoxFunction method = superclass.findMethod(expr.method.lexeme);
+    if (method == null) {
+      throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
+    }
+    return method;
+  }
+
+  @Override
+  public Object visitThisExpr(Expr.This expr) {
+    return lookUpVariable(expr.keyword, expr);
+  }
+
   @Override
   public Object visitUnaryExpr(Expr.Unary expr) {
+    if (typedArithmetic && expr.operator.type == TokenType.MINUS && isNumber(expr.right)) {
+      return Values.number(-evaluateNumber(expr.right));
+    }
+
     Object right = evaluate(expr.right);
 
     switch (expr.operator.type) {
@@ -152,7 +618,9 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       return !isTruthy(right);
     case MINUS:
       checkNumberOperand(expr.operator, right);
-      return -(double) right;
+      if (right instanceof Long)
+        return Values.negate((long) right);
+      return Values.number(-(double) right);
     }
 
     // Unreachable.
@@ -165,7 +633,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
 
   private Object lookUpVariable(Token name, Expr expr) {
-    Integer distance = locals.get(expr);
+    Integer distance = resolution.depth(expr);
     if (distance != null) {
       return environment.getAt(distance, name.lexeme);
     } else {
@@ -173,14 +641,79 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
   }
 
+  private static boolean isNumber(Expr expr) {
+    return expr.type == TypeInference.Type.NUMBER;
+  }
+
+  /**
+   * Evaluates an expression that {@link TypeInference} proved to be a number,
+   * without boxing the intermediate results of typed arithmetic.
+   *
+   * @param expr an expression of type NUMBER
+   * @return its value
+   */
+  private double evaluateNumber(Expr expr) {
+    if (expr.hoisted >= 0) {
+      return Values.toDouble(evaluate(expr));
+    }
+
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      if (isNumber(binary.left) && isNumber(binary.right)) {
+        switch (binary.operator.type) {
+        case MINUS:
+        case PLUS:
+        case STAR:
+        case SLASH:
+          return arithmetic(binary);
+        }
+      }
+    } else if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      if (unary.operator.type == TokenType.MINUS && isNumber(unary.right)) {
+        return -evaluateNumber(unary.right);
+      }
+    } else if (expr instanceof Expr.Grouping) {
+      return evaluateNumber(((Expr.Grouping) expr).expression);
+    }
+
+    return Values.toDouble(evaluate(expr));
+  }
+
+  /**
+   * @param expr arithmetic on two operands of type NUMBER
+   * @return the result
+   */
+  private double arithmetic(Expr.Binary expr) {
+    double left = evaluateNumber(expr.left);
+    double right = evaluateNumber(expr.right);
+
+    switch (expr.operator.type) {
+    case MINUS:
+      return left - right;
+    case PLUS:
+      return left + right;
+    case STAR:
+      return left * right;
+    case SLASH:
+      if (right != 0) {
+        return left / right;
+      }
+      throw new RuntimeError(expr.operator, "Cannot devide by zero");
+    }
+
+    // Unreachable.
+    return 0;
+  }
+
   private void checkNumberOperand(Token operator, Object operand) {
-    if (operand instanceof Double)
+    if (Values.isNumber(operand))
       return;
     throw new RuntimeError(operator, "Operand must be a number.");
   }
 
   private void checkNumberOperands(Token operator, Object left, Object right) {
-    if (left instanceof Double && right instanceof Double)
+    if (Values.isNumber(left) && Values.isNumber(right))
       return;
 
     throw new RuntimeError(operator, "Operands must be numbers.");
@@ -195,18 +728,32 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
 
   private boolean isEqual(Object a, Object b) {
+    // Numbers come from the caches in Values, and booleans are always
+    // Boolean.TRUE or Boolean.FALSE, so this settles most comparisons.
+    if (a == b)
+      return true;
     if (a == null && b == null)
       return true;
     if (a == null)
       return false;
 
-    return a.equals(b);
+    if (Values.isNumber(a) && Values.isNumber(b))
+      return Values.numbersEqual(a, b);
+
+    return LoxString.flatten(a).equals(LoxString.flatten(b));
   }
 
-  private String stringify(Object object) {
+  static String stringify(Object object) {
     if (object == null)
       return "nil";
 
+    if (object instanceof Long) {
+      long value = (long) object;
+      if (value < 10_000_000 && value > -10_000_000)
+        return Long.toString(value);
+      object = (double) value;
+    }
+
     if (object instanceof Double) {
       String text = object.toString();
       if (text.endsWith(".0")) {
@@ -218,7 +765,25 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return object.toString();
   }
 
+  /**
+   * @return a string operand as it is, so that ropes are not flattened, and any
+   *         other value as its printed form
+   */
+  private CharSequence asText(Object object) {
+    if (object instanceof CharSequence)
+      return (CharSequence) object;
+    return stringify(object);
+  }
+
   private Object evaluate(Expr expr) {
+    if (expr.hoisted >= 0) {
+      Object value = hoisted[expr.hoisted];
+      if (value == UNSET) {
+        value = expr.accept(this);
+        hoisted[expr.hoisted] = value;
+      }
+      return value;
+    }
     return expr.accept(this);
   }
 
@@ -226,8 +791,19 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     stmt.accept(this);
   }
 
-  void resolve(Expr expr, int depth) {
-    locals.put(expr, depth);
+  /**
+   * Defines a variable in an environment, in a cell if closures share it.
+   *
+   * @param environment the environment of the declaration
+   * @param name        the declared name
+   * @param value       the initial value
+   */
+  void declare(Environment environment, Token name, Object value) {
+    if (resolution.isBoxed(name)) {
+      environment.defineShared(name.lexeme, value);
+    } else {
+      environment.define(name.lexeme, value);
+    }
   }
 
   void executeBlock(List<Stmt> statements, Environment environment) {
@@ -254,19 +830,103 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     throw new BreakError();
   }
 
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    Object superclass = null;
+    if (stmt.superclass != null) {
+      superclass = evaluate(stmt.superclass);
+      if (!(superclass instanceof LoxClass)) {
+        throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
+      }
+    }
+
+    // Like a function, methods that refer to the class capture its name.
+    if (resolution.isBoxed(stmt.name))
+      environment.defineShared(stmt.name.lexeme, null);
+
+    Environment enclosing = environment;
+    Map<String, LoxFunction> methods = new HashMap<>();
+    try {
+      if (stmt.superclass != null) {
+        environment = new Environment(environment);
+        environment.define("super", superclass);
+      }
+
+      for (Stmt.Function method : stmt.methods) {
+        LoxFunction function = new LoxFunction(method, closure(resolution.captures(method)), globals,
+            method.name.lexeme.equals("init"));
+        methods.put(method.name.lexeme, function);
+      }
+    } finally {
+      environment = enclosing;
+    }
+
+    LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
+    environment.define(stmt.name.lexeme, klass);
+    return null;
+  }
+
   @Override
   public Void visitExpressionStmt(Stmt.Expression stmt) {
     evaluate(stmt.expression);
     return null;
   }
 
+  @Override
+  public Void visitForInStmt(Stmt.ForIn stmt) {
+    Object iterable = evaluate(stmt.iterable);
+    if (!(iterable instanceof LoxIterable)) {
+      throw new RuntimeError(stmt.keyword, "Can only loop over arrays, ranges, files, channels and generators.");
+    }
+
+    List<Stmt> body = Collections.singletonList(stmt.body);
+    try (LoxIterator iterator = ((LoxIterable) iterable).iterator()) {
+      while (iterator.hasNext()) {
+        Environment scope = new Environment(environment);
+        declare(scope, stmt.name, iterator.next());
+        try {
+          executeBlock(body, scope);
+        } catch (BreakError error) {
+          break;
+        }
+      }
+    } catch (NativeError error) {
+      throw new RuntimeError(stmt.keyword, error.getMessage());
+    }
+    return null;
+  }
+
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-    LoxFunction function = new LoxFunction(stmt, environment);
+    // A function that calls itself captures its own name, so the variable has to
+    // exist before the closure is created.
+    if (resolution.isBoxed(stmt.name))
+      environment.defineShared(stmt.name.lexeme, null);
+
+    LoxFunction function = new LoxFunction(stmt, closure(resolution.captures(stmt)), globals);
     environment.define(stmt.name.lexeme, function);
     return null;
   }
 
+  /**
+   * @param captured the free variables of a function
+   * @return a new environment holding just those variables, copied from the
+   *         current one
+   */
+  private Environment closure(Scopes.Captures captured) {
+    if (captured == null)
+      return environment;
+    if (captured.names.length == 0)
+      return null;
+
+    Environment closure = new Environment();
+    for (int i = 0; i < captured.names.length; i++) {
+      String name = captured.names[i];
+      closure.define(name, environment.captureAt(captured.depths[i], name));
+    }
+    return closure;
+  }
+
   @Override
   public Void visitIfStmt(Stmt.If stmt) {
     if (isTruthy(evaluate(stmt.condition))) {
@@ -277,10 +937,27 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitImportStmt(Stmt.Import stmt) {
+    Modules.Module module = modules.load(stmt, globals);
+    declare(environment, stmt.name,
+        globals.module(module.path, path -> new LoxModule(stmt.name.lexeme, module, globals)));
+    return null;
+  }
+
   @Override
   public Void visitPrintStmt(Stmt.Print stmt) {
+    if (typedArithmetic && isNumber(stmt.expression)) {
+      out.printLine(evaluateNumber(stmt.expression));
+      return null;
+    }
+
     Object value = evaluate(stmt.expression);
-    System.out.println(stringify(value));
+    if (Values.isNumber(value)) {
+      out.printLine(Values.toDouble(value));
+    } else {
+      out.printLine(stringify(value));
+    }
     return null;
   }
 
@@ -300,12 +977,35 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       value = evaluate(stmt.initializer);
     }
 
-    environment.define(stmt.name.lexeme, value);
+    declare(environment, stmt.name, value);
     return null;
   }
 
   @Override
   public Void visitWhileStmt(Stmt.While stmt) {
+    Optimizer.Loop loop = resolution.loop(stmt);
+    if (loop == null) {
+      executeWhile(stmt);
+      return null;
+    }
+
+    Object[] enclosingHoisted = hoisted;
+    try {
+      if (loop.hoisted > 0) {
+        hoisted = new Object[loop.hoisted];
+        Arrays.fill(hoisted, UNSET);
+      }
+
+      if (loop.counted == null || !executeCountedLoop(loop.counted)) {
+        executeWhile(stmt);
+      }
+    } finally {
+      hoisted = enclosingHoisted;
+    }
+    return null;
+  }
+
+  private void executeWhile(Stmt.While stmt) {
     while (isTruthy(evaluate(stmt.condition))) {
       try {
         execute(stmt.body);
@@ -313,6 +1013,64 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         break;
       }
     }
+  }
+
+  /**
+   * Runs a loop found by the {@link Optimizer} with the counter in a local
+   * double. The counter lives in the enclosing block, so it is written back to
+   * the environment before the body runs only if the body can see it, and once
+   * when the loop ends.
+   *
+   * @param loop the counted loop
+   * @return false if the counter or bound turned out not to be numbers, and the
+   *         loop has to run the normal way
+   */
+  private boolean executeCountedLoop(Optimizer.CountedLoop loop) {
+    Object start = environment.getAt(0, loop.counter.lexeme);
+    if (!Values.isNumber(start))
+      return false;
+    Object end = evaluate(loop.bound);
+    if (!Values.isNumber(end))
+      return false;
+
+    double counter = Values.toDouble(start);
+    double bound = Values.toDouble(end);
+    List<Stmt> body = Collections.singletonList(loop.body);
+    try {
+      while (compare(loop.comparison, counter, bound)) {
+        if (loop.observed)
+          environment.define(loop.counter.lexeme, Values.number(counter));
+        try {
+          executeBlock(body, new Environment(environment));
+        } catch (BreakError error) {
+          break;
+        }
+        counter += loop.step;
+      }
+    } finally {
+      environment.define(loop.counter.lexeme, Values.number(counter));
+    }
+    return true;
+  }
+
+  private static boolean compare(TokenType comparison, double left, double right) {
+    switch (comparison) {
+    case LESS:
+      return left < right;
+    case LESS_EQUAL:
+      return left <= right;
+    case GREATER:
+      return left > right;
+    case GREATER_EQUAL:
+      return left >= right;
+    default:
+      return false;
+    }
+  }
+
+  @Override
+  public Void visitYieldStmt(Stmt.Yield stmt) {
+    generator.yield(evaluate(stmt.value));
     return null;
   }
 
@@ -320,7 +1078,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   public Object visitAssignExpr(Expr.Assign expr) {
     Object value = evaluate(expr.value);
 
-    Integer distance = locals.get(expr);
+    Integer distance = resolution.depth(expr);
     if (distance != null) {
       environment.assignAt(distance, expr.name, value);
     } else {
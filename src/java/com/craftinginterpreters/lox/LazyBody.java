@@ -0,0 +1,294 @@
+package com.craftinginterpreters.lox;
+
+import java.util.AbstractList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The body of a function that was only brace-matched by the {@link Parser}.
+ * <br />
+ * <br />
+ *
+ * The tokens between the braces are remembered, and the statements are parsed
+ * and resolved the first time anything looks at them, which in practice is the
+ * first {@link LoxFunction#call}. Functions that are never called cost a few
+ * scans over their tokens and nothing else, one of them for the errors that
+ * only depend on where the function is declared.
+ */
+class LazyBody extends AbstractList<Stmt> {
+  private final List<Token> tokens;
+  private final int start;
+  private final int end;
+  private final Token name;
+  private final List<Token> params;
+  private final Resolver.FunctionType type;
+
+  /**
+   * The variables the function captured where it was declared, which are the
+   * only local variables the body can see from outside.
+   */
+  private String[] captured = new String[0];
+  private Compilation compilation;
+
+  private volatile List<Stmt> statements;
+  private boolean failed = false;
+  private boolean assignsOuter = false;
+
+  /**
+   * @param tokens the tokens of the whole program
+   * @param start  the index of the first token after the opening brace
+   * @param end    the index of the closing brace
+   * @param name   the function name, for error reporting
+   * @param params the function parameters
+   * @param type   whether the function is a method or initializer
+   */
+  LazyBody(List<Token> tokens, int start, int end, Token name, List<Token> params, Resolver.FunctionType type) {
+    this.tokens = tokens;
+    this.start = start;
+    this.end = end;
+    this.name = name;
+    this.params = params;
+    this.type = type;
+  }
+
+  /**
+   * Records the resolution context of the declaration.
+   *
+   * @param compilation the program the function belongs to
+   * @param captured    the names captured at the declaration
+   */
+  void bind(Compilation compilation, String[] captured) {
+    this.compilation = compilation;
+    this.captured = captured;
+  }
+
+  boolean isParsed() {
+    return statements != null;
+  }
+
+  /**
+   * Lets analyses stay conservative about a body they have not seen.
+   *
+   * @return every name that appears as an assignment target in the body
+   */
+  Set<String> assignedNames() {
+    Set<String> names = new HashSet<>();
+    for (int i = start; i < end - 1; i++) {
+      if (tokens.get(i).type == TokenType.IDENTIFIER && tokens.get(i + 1).type == TokenType.EQUAL) {
+        names.add(tokens.get(i).lexeme);
+      }
+    }
+    return names;
+  }
+
+  /**
+   * @return whether the body itself, outside of nested functions and classes,
+   *         yields, which makes the function a generator
+   */
+  boolean yields() {
+    for (int i = start; i < end; i++) {
+      TokenType type = tokens.get(i).type;
+      if (type == TokenType.YIELD)
+        return true;
+      if (type == TokenType.FUN || type == TokenType.CLASS)
+        i = skipDeclaration(i);
+    }
+    return false;
+  }
+
+  /**
+   * Reports the errors that depend on where the function is declared, which
+   * the resolver would only find once the body is parsed: returning or yielding
+   * a value from an initializer, and this or super outside of a class that
+   * provides them. The functions and classes nested in the body are checked
+   * with it, so that <code>--lazy</code> rejects the same programs as a full
+   * parse.
+   *
+   * @param enclosing the class the function is declared in
+   */
+  void checkContext(ErrorReporter reporter, Resolver.ClassType enclosing) {
+    checkContext(reporter, start, end, type, enclosing);
+  }
+
+  /**
+   * @param from  the index of the first token of a body
+   * @param to    the index of the brace that closes it
+   * @param type  the function the body belongs to
+   * @param klass the class the function is declared in
+   */
+  private void checkContext(ErrorReporter reporter, int from, int to, Resolver.FunctionType type,
+      Resolver.ClassType klass) {
+    for (int i = from; i < to; i++) {
+      Token token = tokens.get(i);
+      switch (token.type) {
+        case RETURN:
+          if (type == Resolver.FunctionType.INITIALIZER && tokens.get(i + 1).type != TokenType.SEMICOLON)
+            reporter.error(token, "Can't return a value from an initializer.");
+          break;
+        case YIELD:
+          if (type == Resolver.FunctionType.INITIALIZER)
+            reporter.error(token, "Can't yield from an initializer.");
+          break;
+        case THIS:
+          if (klass == Resolver.ClassType.NONE)
+            reporter.error(token, "Can't use 'this' outside of a class.");
+          break;
+        case SUPER:
+          if (klass == Resolver.ClassType.NONE)
+            reporter.error(token, "Can't use 'super' outside of a class.");
+          else if (klass == Resolver.ClassType.CLASS)
+            reporter.error(token, "Can't use 'super' in a class with no superclass.");
+          break;
+        case FUN: {
+          int close = skipDeclaration(i, to);
+          checkContext(reporter, bodyStart(i, close), close, Resolver.FunctionType.FUNCTION, klass);
+          i = close;
+          break;
+        }
+        case CLASS: {
+          int close = skipDeclaration(i, to);
+          Resolver.ClassType nested = tokens.get(i + 2).type == TokenType.LESS ? Resolver.ClassType.SUBCLASS
+              : Resolver.ClassType.CLASS;
+          // Every method is a name, parameters and a body.
+          for (int j = bodyStart(i, close); j < close; j++) {
+            int method = skipDeclaration(j, close);
+            Resolver.FunctionType kind = tokens.get(j).lexeme.equals("init") ? Resolver.FunctionType.INITIALIZER
+                : Resolver.FunctionType.METHOD;
+            checkContext(reporter, bodyStart(j, method), method, kind, nested);
+            j = method;
+          }
+          i = close;
+          break;
+        }
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * @return the index of the first token after the opening brace of the
+   *         declaration at the index
+   */
+  private int bodyStart(int index, int close) {
+    int i = index;
+    while (i < close && tokens.get(i).type != TokenType.LEFT_BRACE) {
+      i++;
+    }
+    return i + 1;
+  }
+
+  /**
+   * @param index the index of a fun or class keyword
+   * @return the index of the brace that closes its body
+   */
+  private int skipDeclaration(int index) {
+    return skipDeclaration(index, end);
+  }
+
+  /**
+   * @param index the index of a declaration
+   * @param to    the index past which not to look
+   * @return the index of the brace that closes its body
+   */
+  private int skipDeclaration(int index, int to) {
+    int i = index;
+    while (i < to && tokens.get(i).type != TokenType.LEFT_BRACE) {
+      i++;
+    }
+
+    int depth = 0;
+    for (; i < to; i++) {
+      TokenType type = tokens.get(i).type;
+      if (type == TokenType.LEFT_BRACE) {
+        depth++;
+      } else if (type == TokenType.RIGHT_BRACE && --depth == 0) {
+        break;
+      }
+    }
+    return i;
+  }
+
+  /**
+   * Resolves every identifier in the body as if it were a variable, so that the
+   * function captures everything the body could possibly refer to. this and
+   * super count as variables too, since nested functions capture them.
+   *
+   * @param scopes the scopes at the declaration, with the parameters declared
+   */
+  void resolveNames(Scopes scopes) {
+    for (int i = start; i < end; i++) {
+      Token token = tokens.get(i);
+      if (token.type == TokenType.IDENTIFIER) {
+        scopes.resolve(token.lexeme, tokens.get(i + 1).type == TokenType.EQUAL);
+      } else if (token.type == TokenType.THIS) {
+        scopes.resolve("this", false);
+      } else if (token.type == TokenType.SUPER) {
+        scopes.resolve("this", false);
+        scopes.resolve("super", false);
+      }
+    }
+  }
+
+  List<Stmt> statements() {
+    List<Stmt> result = statements;
+    if (result == null) {
+      result = parse();
+    }
+    return result;
+  }
+
+  private synchronized List<Stmt> parse() {
+    if (statements != null)
+      return statements;
+    if (failed)
+      throw new RuntimeError(name, "Function '" + name.lexeme + "' has errors.");
+
+    ErrorReporter reporter = compilation.reporter;
+    int errors = reporter.count();
+
+    Parser parser = new Parser(tokens, compilation);
+    List<Stmt> body = parser.functionBody(start, captured, params, type);
+    assignsOuter = parser.assignsOuter();
+    if (reporter.count() == errors && !compilation.engine.fusedResolve) {
+      assignsOuter = new Resolver(compilation).resolveBody(captured, params, body, type);
+    }
+
+    if (reporter.count() > errors) {
+      failed = true;
+      throw new RuntimeError(name, "Function '" + name.lexeme + "' has errors.");
+    }
+
+    compilation.analyze(body);
+    statements = body;
+    return body;
+  }
+
+  /**
+   * Parses the body if it is not parsed yet.
+   *
+   * @return whether the body assigns a variable declared outside it, see
+   *         {@link Resolution#assignsOuter}
+   */
+  boolean assignsOuter() {
+    statements();
+    return assignsOuter;
+  }
+
+  @Override
+  public Stmt get(int index) {
+    return statements().get(index);
+  }
+
+  @Override
+  public int size() {
+    return statements().size();
+  }
+
+  @Override
+  public Iterator<Stmt> iterator() {
+    return statements().iterator();
+  }
+}
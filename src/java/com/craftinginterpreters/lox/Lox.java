@@ -1,27 +1,255 @@
 package com.craftinginterpreters.lox;
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.SocketException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.io.BufferedReader;
 //import java.util.Scanner;
 
 public class Lox {
-  private static final Interpreter interpreter = new Interpreter();
-  static boolean hadError = false;
-  static boolean hadRuntimeError = false;
+  /**
+   * Where print statements go, flushed at exit, on errors and at the prompt.
+   */
+  static final OutputBuffer out = new OutputBuffer(new FileOutputStream(FileDescriptor.out).getChannel(),
+      Charset.defaultCharset());
+  private static final ErrorReporter reporter = new ErrorReporter(out);
+
+  /**
+   * The options from the flags: --fused-resolve, --lazy, --typed,
+   * --no-optimize and --no-licm, see {@link LoxEngine}.
+   */
+  private static final LoxEngine engine = new LoxEngine();
+
+  /**
+   * The program that the script, or every line of the REPL, is compiled into,
+   * and the interpreter running it.
+   */
+  private static Compilation compilation;
+  private static Interpreter interpreter;
+
+  /**
+   * Parse and resolve everything eagerly to report errors, but do not run the
+   * program. Enabled with --check.
+   */
+  private static boolean checkOnly = false;
+
+  /**
+   * Print how many expressions got a static type. Enabled with --type-stats.
+   */
+  private static boolean typeStats = false;
+
+  /**
+   * Count how many numbers were boxed and how many came from a cache, and print
+   * the totals at exit. Enabled with --alloc-stats.
+   */
+  private static boolean allocationStats = false;
+
+  /**
+   * Run scripts for clients instead of running one, or send the script to a
+   * running server, see {@link LoxServer}. Enabled with --server and
+   * --connect, on the socket given with --socket=path.
+   */
+  private static boolean server = false;
+  private static boolean connect = false;
+  private static Path socket = LoxServer.defaultSocket();
+
+  /**
+   * Save the globals to a file after running the script, or start from the
+   * globals saved in one, see {@link Snapshot}. Enabled with --snapshot=path
+   * and --restore=path.
+   */
+  private static Path snapshot = null;
+  private static Path restore = null;
+
+  /**
+   * Run every script, directory and manifest given at once, see
+   * {@link LoxBatch}. Enabled with --batch, with --jobs=n workers and the output
+   * of every script saved to --output=dir.
+   */
+  private static boolean batch = false;
+  private static int jobs = Runtime.getRuntime().availableProcessors();
+  private static Path output = null;
 
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
+    List<String> scripts = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.equals("--fused-resolve")) {
+        engine.fusedResolve = true;
+      } else if (arg.equals("--lazy")) {
+        engine.lazyFunctions = true;
+      } else if (arg.equals("--check")) {
+        checkOnly = true;
+      } else if (arg.equals("--typed")) {
+        engine.staticTypes = true;
+      } else if (arg.equals("--type-stats")) {
+        typeStats = true;
+        engine.inferTypes = true;
+      } else if (arg.equals("--no-optimize")) {
+        engine.optimize = false;
+      } else if (arg.equals("--no-licm")) {
+        engine.hoisting = false;
+      } else if (arg.equals("--alloc-stats")) {
+        allocationStats = true;
+        Values.countAllocations();
+      } else if (arg.equals("--server")) {
+        server = true;
+      } else if (arg.equals("--connect")) {
+        connect = true;
+      } else if (arg.startsWith("--socket=")) {
+        socket = Paths.get(arg.substring("--socket=".length()));
+      } else if (arg.startsWith("--snapshot=")) {
+        snapshot = Paths.get(arg.substring("--snapshot=".length()));
+      } else if (arg.startsWith("--restore=")) {
+        restore = Paths.get(arg.substring("--restore=".length()));
+      } else if (arg.equals("--batch")) {
+        batch = true;
+      } else if (arg.startsWith("--jobs=")) {
+        jobs = count(arg.substring("--jobs=".length()));
+      } else if (arg.startsWith("--output=")) {
+        output = Paths.get(arg.substring("--output=".length()));
+      } else if (arg.startsWith("--")) {
+        usage();
+      } else {
+        scripts.add(arg);
+      }
+    }
+
+    if (batch) {
+      if (scripts.isEmpty() || server || connect || snapshot != null || restore != null)
+        usage();
+      System.exit(runBatch(scripts));
+    }
+
+    if (scripts.size() > 1 || (server && (connect || !scripts.isEmpty())) || (connect && scripts.isEmpty())) {
+      usage();
+    }
+
+    if (server) {
+      try {
+        LoxServer.serve(engine, socket);
+      } catch (IOException error) {
+        System.err.println(error.getMessage() != null ? error.getMessage() : "Can't listen on " + socket + ".");
+        System.exit(74);
+      }
+      return;
+    }
+    if (connect) {
+      System.exit(connect(scripts.get(0)));
+    }
+
+    if (checkOnly || snapshot != null || restore != null)
+      engine.lazyFunctions = false;
+    if (restore != null) {
+      restore();
     } else {
-      runPrompt();
+      compilation = new Compilation(engine, reporter);
+      interpreter = engine.interpreter(compilation.resolution, out);
+    }
+
+    int status = 0;
+    try {
+      if (scripts.size() == 1) {
+        status = runFile(scripts.get(0));
+      } else {
+        runPrompt();
+      }
+      if (status == 0 && snapshot != null)
+        status = save();
+    } finally {
+      LoxWriter.closeAll(interpreter.globals);
+      out.flush();
+      if (allocationStats)
+        System.err.println(Values.report());
+    }
+    if (status != 0)
+      System.exit(status);
+  }
+
+  private static void usage() {
+    System.out.println("Usage: jlox [--fused-resolve] [--lazy] [--check] [--typed] [--type-stats] [--no-optimize] [--no-licm] [--alloc-stats] [--snapshot=path] [--restore=path] [script]");
+    System.out.println("       jlox [options] --server [--socket=path]");
+    System.out.println("       jlox --connect [--socket=path] script");
+    System.out.println("       jlox [options] --batch [--jobs=n] [--output=dir] (script|directory|manifest)...");
+    System.exit(64);
+  }
+
+  private static void restore() {
+    try {
+      Snapshot restored = Snapshot.restore(restore, engine, reporter, out);
+      compilation = restored.compilation;
+      interpreter = restored.interpreter;
+    } catch (IOException error) {
+      System.err.println(error.getMessage());
+      System.exit(66);
+    }
+  }
+
+  /**
+   * @return the exit status
+   */
+  private static int save() {
+    try {
+      Snapshot.save(snapshot, compilation, interpreter);
+      return 0;
+    } catch (IOException error) {
+      System.err.println(error.getMessage() != null ? error.getMessage() : "Can't write '" + snapshot + "'.");
+      return 74;
+    }
+  }
+
+  /**
+   * @return the positive count given with a flag
+   */
+  private static int count(String value) {
+    try {
+      int count = Integer.parseInt(value);
+      if (count > 0)
+        return count;
+    } catch (NumberFormatException error) {
+      // Falls through to the usage.
+    }
+    usage();
+    return 0;
+  }
+
+  private static int runBatch(List<String> paths) {
+    try {
+      return LoxBatch.run(engine, paths, jobs, output);
+    } catch (IOException error) {
+      System.err.println(error.getMessage());
+      return 66;
+    }
+  }
+
+  /**
+   * @return the exit status of the script that the server ran
+   */
+  private static int connect(String path) {
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(Paths.get(path));
+    } catch (IOException | InvalidPathException error) {
+      System.err.println("Can't read '" + path + "'.");
+      return 66;
+    }
+
+    try {
+      return LoxServer.connect(socket, bytes);
+    } catch (SocketException error) {
+      System.err.println("No Lox server is listening on " + socket + ".");
+      return 69;
+    } catch (IOException error) {
+      System.err.println(error.getMessage());
+      return 74;
     }
   }
 
@@ -30,15 +258,18 @@ public class Lox {
    * reads the file and executes it
    * 
    * @param path
+   * @return the exit status
    * @throws IOException
    */
-  private static void runFile(String path) throws IOException {
+  private static int runFile(String path) throws IOException {
     byte[] bytes = Files.readAllBytes(Paths.get(path));
+    interpreter.globals.useDirectory(Paths.get(path).toAbsolutePath().getParent());
     run(new String(bytes, Charset.defaultCharset()));
-    if (hadError)
-      System.exit(65);
-    if (hadRuntimeError)
-      System.exit(70);
+    if (reporter.hadError())
+      return 65;
+    if (reporter.hadRuntimeError())
+      return 70;
+    return 0;
   }
 
   /**
@@ -53,12 +284,13 @@ public class Lox {
     BufferedReader reader = new BufferedReader(input);
 
     for (;;) {
+      out.flush();
       System.out.print("> ");
       String line = reader.readLine();
       if (line == null)
         break;
       run(line);
-      hadError = false;
+      reporter.reset();
     }
   }
 
@@ -66,56 +298,19 @@ public class Lox {
    * @param source
    */
   private static void run(String source) {
+    List<Stmt> statements = compilation.compile(source);
 
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
-
-    Parser parser = new Parser(tokens);
-    List<Stmt> statements = parser.parse();
-
-    // Stop if there was a syntax error.
-    if (hadError)
+    // Stop if there was a syntax or resolution error.
+    if (reporter.hadError())
       return;
 
-    Resolver resolver = new Resolver(interpreter);
-    resolver.resolve(statements);
+    TypeInference types = compilation.types();
+    if (typeStats && types != null)
+      System.err.println(types.report());
 
-    // Stop if there was a resolution error.
-    if (hadError)
+    if (checkOnly)
       return;
 
-    interpreter.interpret(statements);
-  }
-
-  /**
-   * @param line    Which line in the code the error is on
-   * @param message Error message
-   */
-  static void error(int line, String message) {
-    report(line, "", message);
-  }
-
-  /**
-   * @param line
-   * @param where
-   * @param message
-   */
-  private static void report(int line, String where, String message) {
-    System.err.println("[line " + line + "] Error" + where + ": " + message);
-    hadError = true;
-  }
-
-  static void error(Token token, String message) {
-    if (token.type == TokenType.EOF) {
-      report(token.line, " at end", message);
-    } else {
-      report(token.line, " at '" + token.lexeme + "'", message);
-    }
+    interpreter.interpret(statements, reporter);
   }
-
-  static void runtimeError(RuntimeError error) {
-    System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
-    hadRuntimeError = true;
-  }
-
 }
@@ -0,0 +1,248 @@
+package com.craftinginterpreters.lox;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The value behind the Array native: a growable list indexed with
+ * <code>array[index]</code>. <br />
+ * <br />
+ *
+ * While every element is a number, the elements are kept unboxed in a
+ * double[], which is exact since integers are only kept as {@link Long} up to
+ * 2^53. Storing anything else switches the array to an Object[] for good,
+ * except that filling it with a number switches it back. The bulk operations
+ * work on the double[] directly. <br />
+ * <br />
+ *
+ * A for-in loop reads the elements by index as it goes, so it sees elements
+ * that the body changes or pushes.
+ */
+final class LoxArray implements LoxIterable, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private double[] numbers;
+  private Object[] objects = null;
+  private int size;
+
+  /**
+   * @param size the number of elements, which all start out as 0
+   */
+  LoxArray(int size) {
+    this.numbers = new double[Math.max(size, 8)];
+    this.size = size;
+  }
+
+  /**
+   * @param value    an argument to a native
+   * @param function the native, for the error message
+   * @return the argument as an array
+   */
+  static LoxArray cast(Object value, String function) {
+    if (value instanceof LoxArray)
+      return (LoxArray) value;
+    throw new NativeError("Expected an array argument to " + function + "().");
+  }
+
+  /**
+   * @param numbers the elements, which the array takes over
+   * @param size    how many of them are in use
+   */
+  static LoxArray of(double[] numbers, int size) {
+    LoxArray array = new LoxArray(0);
+    array.numbers = numbers.length > 0 ? numbers : array.numbers;
+    array.size = size;
+    return array;
+  }
+
+  int size() {
+    return size;
+  }
+
+  Object get(Object index) {
+    int position = position(index);
+    if (numbers != null)
+      return Values.number(numbers[position]);
+    return objects[position];
+  }
+
+  void set(Object index, Object value) {
+    store(position(index), value);
+  }
+
+  void push(Object value) {
+    int capacity = numbers != null ? numbers.length : objects.length;
+    if (size == capacity) {
+      if (numbers != null) {
+        numbers = Arrays.copyOf(numbers, capacity * 2);
+      } else {
+        objects = Arrays.copyOf(objects, capacity * 2);
+      }
+    }
+    size++;
+    store(size - 1, value);
+  }
+
+  Object pop() {
+    if (size == 0)
+      throw new NativeError("Can't pop from an empty array.");
+
+    Object value = get((long) size - 1);
+    size--;
+    if (objects != null)
+      objects[size] = null;
+    return value;
+  }
+
+  void fill(Object value) {
+    if (Values.isNumber(value)) {
+      if (numbers == null) {
+        numbers = new double[objects.length];
+        objects = null;
+      }
+      Arrays.fill(numbers, 0, size, Values.toDouble(value));
+    } else {
+      widen();
+      Arrays.fill(objects, 0, size, value);
+    }
+  }
+
+  /**
+   * Copies elements like {@link System#arraycopy}, so the ranges may overlap.
+   */
+  static void copy(LoxArray from, int fromIndex, LoxArray to, int toIndex, int count) {
+    if (count < 0 || fromIndex < 0 || toIndex < 0 || fromIndex + count > from.size || toIndex + count > to.size)
+      throw new NativeError("Copy range is out of bounds.");
+
+    if (from.numbers != null && to.numbers != null) {
+      System.arraycopy(from.numbers, fromIndex, to.numbers, toIndex, count);
+      return;
+    }
+
+    if (from.numbers != null) {
+      for (int i = 0; i < count; i++) {
+        to.objects[toIndex + i] = Values.number(from.numbers[fromIndex + i]);
+      }
+      return;
+    }
+
+    to.widen();
+    System.arraycopy(from.objects, fromIndex, to.objects, toIndex, count);
+  }
+
+  /**
+   * Sorts numbers in ascending order, or strings in lexicographic order.
+   */
+  void sort() {
+    if (numbers != null) {
+      Arrays.sort(numbers, 0, size);
+      return;
+    }
+
+    for (int i = 0; i < size; i++) {
+      if (!(objects[i] instanceof CharSequence))
+        throw new NativeError("Can only sort an array of numbers or an array of strings.");
+      objects[i] = objects[i].toString();
+    }
+    Arrays.sort(objects, 0, size);
+  }
+
+  Object sum() {
+    if (numbers != null)
+      return Values.number(Vectors.sum(numbers, size));
+
+    double sum = 0;
+    for (int i = 0; i < size; i++) {
+      if (!Values.isNumber(objects[i]))
+        throw new NativeError("Can only sum an array of numbers.");
+      sum += Values.toDouble(objects[i]);
+    }
+    return Values.number(sum);
+  }
+
+  /**
+   * Switches the array back to a double[] if it only holds numbers.
+   *
+   * @param function the native, for the error message
+   * @return the elements, of which the first {@link #size} are in use
+   */
+  double[] numbers(String function) {
+    if (numbers != null)
+      return numbers;
+
+    double[] narrowed = new double[objects.length];
+    for (int i = 0; i < size; i++) {
+      if (!Values.isNumber(objects[i]))
+        throw new NativeError("Expected an array of numbers argument to " + function + "().");
+      narrowed[i] = Values.toDouble(objects[i]);
+    }
+    numbers = narrowed;
+    objects = null;
+    return numbers;
+  }
+
+  @Override
+  public LoxIterator iterator() {
+    return new LoxIterator() {
+      private int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < size;
+      }
+
+      @Override
+      public Object next() {
+        int index = next++;
+        return numbers != null ? Values.number(numbers[index]) : objects[index];
+      }
+    };
+  }
+
+  private int position(Object index) {
+    if (!(index instanceof Long))
+      throw new NativeError("Array index must be an integer.");
+    long position = (long) index;
+    if (position < 0 || position >= size)
+      throw new NativeError("Array index " + position + " is out of bounds.");
+    return (int) position;
+  }
+
+  private void store(int index, Object value) {
+    if (numbers != null) {
+      if (value instanceof Long) {
+        numbers[index] = (long) value;
+        return;
+      }
+      if (value instanceof Double) {
+        numbers[index] = (double) value;
+        return;
+      }
+      widen();
+    }
+    objects[index] = value;
+  }
+
+  private void widen() {
+    if (numbers == null)
+      return;
+
+    objects = new Object[numbers.length];
+    for (int i = 0; i < size; i++) {
+      objects[i] = Values.number(numbers[i]);
+    }
+    numbers = null;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("[");
+    for (int i = 0; i < size; i++) {
+      if (i > 0)
+        builder.append(", ");
+      Object element = numbers != null ? Values.number(numbers[i]) : objects[i];
+      builder.append(element == this ? "[...]" : Interpreter.stringify(element));
+    }
+    return builder.append("]").toString();
+  }
+}
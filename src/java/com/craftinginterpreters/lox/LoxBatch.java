@@ -0,0 +1,339 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs many scripts in one JVM, for jobs that would otherwise start a JVM for
+ * every script. <br />
+ * <br />
+ *
+ * <code>jlox --batch [--jobs=n] [--output=dir] path...</code> takes scripts,
+ * directories, whose .lox files it runs in the order of their names, and
+ * manifests, which list one script per line relative to the manifest, with
+ * blank lines and lines starting with # left out. The scripts are compiled on
+ * a pool of n workers, one for each processor unless given, and then run on
+ * the same pool, each in an interpreter of its own with fresh globals and its
+ * output captured. Modules are compiled once for the whole batch, so a
+ * prelude that every script imports is only compiled by the first. Imports
+ * are relative to the script, and the other paths in the scripts to the
+ * working directory, which they share. <br />
+ * <br />
+ *
+ * A summary table follows with the time each script spent compiling and
+ * running, and then the output and errors of every script that failed. With
+ * <code>--output</code> the output of every script is also written to a file
+ * in the directory, named after the script. <br />
+ * <br />
+ *
+ * A script fails when it has a compile or runtime error, unless it ends in the
+ * runtime error it expects in a comment like
+ * <code>// expect runtime error: message</code>, which may also follow its path
+ * in a manifest. A script with comments like <code>// expect: line</code> also
+ * fails unless it prints those lines and nothing else. The exit status is 70
+ * if any script failed.
+ */
+final class LoxBatch {
+  private static final Pattern EXPECTED_ERROR = Pattern.compile("// expect runtime error: (.*)");
+  private static final Pattern EXPECTED_OUTPUT = Pattern.compile("// expect: ?(.*)");
+
+  /**
+   * One script of the batch.
+   */
+  private static final class Job {
+    final Path path;
+    CompiledScript script = null;
+    String output = "";
+    List<String> errors = new ArrayList<>();
+    String expectedError;
+    List<String> expectedOutput = new ArrayList<>();
+    boolean moduleErrors = false;
+    long compileNanos = 0;
+    long runNanos = 0;
+
+    /**
+     * @param expectedError the runtime error that the manifest expects, or null
+     */
+    Job(Path path, String expectedError) {
+      this.path = path;
+      this.expectedError = expectedError;
+    }
+
+    boolean passed() {
+      return ranAsExpected() && mismatch() == null;
+    }
+
+    private boolean ranAsExpected() {
+      if (expectedError == null || script == null || script.hasErrors() || moduleErrors)
+        return errors.isEmpty();
+      return errors.size() == 1 && errors.get(0).startsWith(expectedError + "\n");
+    }
+
+    /**
+     * @return where the output differs from the expected lines, or null if it
+     *         doesn't or the script expects none
+     */
+    String mismatch() {
+      if (expectedOutput.isEmpty())
+        return null;
+
+      List<String> lines = output.lines().collect(Collectors.toList());
+      for (int i = 0; i < Math.max(lines.size(), expectedOutput.size()); i++) {
+        if (i >= lines.size())
+          return "Expected '" + expectedOutput.get(i) + "' on output line " + (i + 1) + ", after the end.";
+        if (i >= expectedOutput.size())
+          return "Expected the output to end before line " + (i + 1) + ", '" + lines.get(i) + "'.";
+        if (!lines.get(i).equals(expectedOutput.get(i)))
+          return "Expected '" + expectedOutput.get(i) + "' on output line " + (i + 1) + ", not '" + lines.get(i) + "'.";
+      }
+      return null;
+    }
+
+    String status() {
+      if (script == null)
+        return "unreadable";
+      if (script.hasErrors() || moduleErrors)
+        return "compile error";
+      if (!ranAsExpected())
+        return "runtime error";
+      if (mismatch() != null)
+        return "wrong output";
+      return "ok";
+    }
+  }
+
+  private final LoxEngine engine;
+  private final ExecutorService workers;
+
+  private LoxBatch(LoxEngine engine, int jobs) {
+    this.engine = engine;
+    this.workers = Executors.newFixedThreadPool(jobs, body -> {
+      Thread thread = new Thread(body, "lox-batch");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @param paths  scripts, directories and manifests
+   * @param jobs   how many scripts to compile or run at once
+   * @param output the directory to write the output of every script to, or
+   *               null
+   * @return the exit status
+   */
+  static int run(LoxEngine engine, List<String> paths, int jobs, Path output) throws IOException {
+    long start = System.nanoTime();
+    List<Job> batch = new ArrayList<>();
+    for (String path : paths) {
+      collect(Paths.get(path), batch);
+    }
+    long collected = System.nanoTime();
+
+    LoxBatch runner = new LoxBatch(engine, jobs);
+    try {
+      runner.each(batch, runner::compile);
+      long compiled = System.nanoTime();
+      runner.each(batch, runner::execute);
+      long ran = System.nanoTime();
+
+      if (output != null)
+        save(batch, output);
+      report(batch, jobs, collected - start, compiled - collected, ran - compiled);
+    } finally {
+      runner.workers.shutdown();
+    }
+
+    for (Job job : batch) {
+      if (!job.passed())
+        return 70;
+    }
+    return 0;
+  }
+
+  /**
+   * Adds a job for every script a path stands for.
+   */
+  private static void collect(Path path, List<Job> batch) throws IOException {
+    if (path.toString().endsWith(".lox") && !Files.isDirectory(path)) {
+      batch.add(new Job(path, null));
+      return;
+    }
+
+    if (Files.isDirectory(path)) {
+      try (Stream<Path> files = Files.list(path)) {
+        files.filter(file -> file.toString().endsWith(".lox") && Files.isRegularFile(file)).sorted()
+            .forEach(file -> batch.add(new Job(file, null)));
+        return;
+      } catch (IOException error) {
+        throw new IOException("Can't read '" + path + "'.", error);
+      }
+    }
+
+    List<String> lines;
+    try {
+      lines = Files.readAllLines(path, Charset.defaultCharset());
+    } catch (IOException error) {
+      throw new IOException("Can't read '" + path + "'.", error);
+    }
+    Path directory = path.toAbsolutePath().getParent();
+    for (String line : lines) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#"))
+        continue;
+
+      String expectedError = null;
+      Matcher expected = EXPECTED_ERROR.matcher(line);
+      if (expected.find()) {
+        expectedError = expected.group(1).trim();
+        line = line.substring(0, expected.start()).trim();
+      }
+      batch.add(new Job(relative(directory.resolve(line).normalize()), expectedError));
+    }
+  }
+
+  /**
+   * @return the path relative to the working directory if it is inside it, so
+   *         that the table stays narrow
+   */
+  private static Path relative(Path path) {
+    Path working = Paths.get("").toAbsolutePath();
+    return path.startsWith(working) ? working.relativize(path) : path;
+  }
+
+  /**
+   * Runs a step for every job on the workers, and waits for all of them.
+   */
+  private void each(List<Job> batch, Consumer<Job> step) throws IOException {
+    List<Future<?>> futures = new ArrayList<>();
+    for (Job job : batch) {
+      futures.add(workers.submit(() -> step.accept(job)));
+    }
+
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted.");
+    } catch (ExecutionException error) {
+      throw new IllegalStateException(error.getCause());
+    }
+  }
+
+  private void compile(Job job) {
+    long start = System.nanoTime();
+    String source;
+    try {
+      source = new String(Files.readAllBytes(job.path), Charset.defaultCharset());
+    } catch (IOException error) {
+      job.errors.add("Can't read '" + job.path + "'.");
+      return;
+    }
+
+    job.script = engine.compile(source, job.path);
+    job.errors.addAll(job.script.errors());
+    Matcher expected = EXPECTED_ERROR.matcher(source);
+    if (expected.find())
+      job.expectedError = expected.group(1).trim();
+    expected = EXPECTED_OUTPUT.matcher(source);
+    while (expected.find()) {
+      job.expectedOutput.add(expected.group(1));
+    }
+    job.compileNanos = System.nanoTime() - start;
+  }
+
+  private void execute(Job job) {
+    if (job.script == null || job.script.hasErrors())
+      return;
+
+    long start = System.nanoTime();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputBuffer out = new OutputBuffer(Channels.newChannel(bytes), Charset.defaultCharset());
+    ErrorReporter reporter = new ErrorReporter();
+    try {
+      engine.execute(job.script, out, reporter);
+    } catch (RuntimeException | StackOverflowError error) {
+      // One script going wrong inside the interpreter leaves the others to run.
+      job.errors.add("The interpreter failed with " + error + ".");
+    } finally {
+      out.flush();
+    }
+    job.output = bytes.toString(Charset.defaultCharset());
+    job.errors.addAll(reporter.errors());
+    job.moduleErrors = reporter.hadError();
+    job.runNanos = System.nanoTime() - start;
+  }
+
+  private static void save(List<Job> batch, Path directory) throws IOException {
+    Files.createDirectories(directory);
+    for (Job job : batch) {
+      StringBuilder text = new StringBuilder(job.output);
+      for (String error : job.errors) {
+        text.append(error).append('\n');
+      }
+      String name = job.path.getFileName().toString().replaceFirst("\\.lox$", "") + ".out";
+      Files.writeString(directory.resolve(name), text, Charset.defaultCharset());
+    }
+  }
+
+  private static void report(List<Job> batch, int jobs, long collecting, long compiling, long running) {
+    int width = "script".length();
+    for (Job job : batch) {
+      width = Math.max(width, job.path.toString().length());
+    }
+
+    String row = "%-" + width + "s  %-13s  %10s  %10s%n";
+    System.out.printf(row, "script", "status", "compile", "run");
+    long compileTotal = 0;
+    long runTotal = 0;
+    int failed = 0;
+    for (Job job : batch) {
+      System.out.printf(row, job.path, job.status(), millis(job.compileNanos), millis(job.runNanos));
+      compileTotal += job.compileNanos;
+      runTotal += job.runNanos;
+      if (!job.passed())
+        failed++;
+    }
+
+    System.out.println();
+    System.out.printf("%d scripts, %d passed, %d failed, on %d workers%n", batch.size(), batch.size() - failed, failed,
+        jobs);
+    System.out.printf("collect %s, compile %s (%s of work), run %s (%s of work)%n", millis(collecting),
+        millis(compiling), millis(compileTotal), millis(running), millis(runTotal));
+
+    for (Job job : batch) {
+      if (job.passed())
+        continue;
+      System.out.println();
+      System.out.println("== " + job.path + " (" + job.status() + ")");
+      System.out.print(job.output);
+      for (String error : job.errors) {
+        System.out.println(error);
+      }
+      String mismatch = job.mismatch();
+      if (mismatch != null)
+        System.out.println(mismatch);
+    }
+  }
+
+  private static String millis(long nanos) {
+    return String.format("%.1f ms", nanos / 1e6);
+  }
+}
@@ -0,0 +1,152 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The value behind the Buffer and mapBuffer natives: a fixed number of bytes
+ * outside the Java heap, read and written as doubles, ints or bytes. <br />
+ * <br />
+ *
+ * The bytes are a direct {@link ByteBuffer}, or a file mapped into memory, so
+ * the collector never copies or scans them and a large dataset does not make
+ * its pauses longer. A buffer is freed, or unmapped, once no Lox value refers
+ * to it any more. Changes to a mapped buffer reach the file. <br />
+ * <br />
+ *
+ * The get and set natives take the index of an element of their type, so
+ * <code>getDouble(buffer, 1)</code> reads bytes 8 to 15. Sizes, slices and
+ * copies count bytes. A slice shares the bytes of its buffer. The numeric
+ * natives in {@link Vectors} read a buffer as doubles.
+ */
+final class LoxBuffer {
+  private final ByteBuffer bytes;
+
+  private LoxBuffer(ByteBuffer bytes) {
+    this.bytes = bytes.order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Direct buffers together get as much memory as the heap unless
+   * -XX:MaxDirectMemorySize says otherwise. A mapped buffer has no such limit.
+   *
+   * @param size the number of bytes, which all start out as 0
+   */
+  static LoxBuffer allocate(int size) {
+    if (size < 0)
+      throw new NativeError("Buffer size can't be negative.");
+    try {
+      return new LoxBuffer(ByteBuffer.allocateDirect(size));
+    } catch (OutOfMemoryError error) {
+      throw new NativeError("Not enough memory for a buffer of " + size + " bytes.");
+    }
+  }
+
+  /**
+   * @param size the number of bytes, which the file is grown to if it is
+   *             shorter
+   * @return a buffer over the start of the file, which is created if needed
+   */
+  static LoxBuffer map(Path path, int size) {
+    if (size < 0)
+      throw new NativeError("Buffer size can't be negative.");
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      return new LoxBuffer(channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    } catch (IOException error) {
+      throw new NativeError("Can't map file '" + path + "'.");
+    }
+  }
+
+  static LoxBuffer cast(Object value, String function) {
+    if (value instanceof LoxBuffer)
+      return (LoxBuffer) value;
+    throw new NativeError("Expected a buffer argument to " + function + "().");
+  }
+
+  /**
+   * @return the number of bytes
+   */
+  int size() {
+    return bytes.capacity();
+  }
+
+  Object getDouble(Object index) {
+    return Values.number(bytes.getDouble(offset(index, Double.BYTES)));
+  }
+
+  void setDouble(Object index, Object value) {
+    bytes.putDouble(offset(index, Double.BYTES), NativeFunction.number(value, "setDouble"));
+  }
+
+  Object getInt(Object index) {
+    return Values.number(bytes.getInt(offset(index, Integer.BYTES)));
+  }
+
+  void setInt(Object index, Object value) {
+    bytes.putInt(offset(index, Integer.BYTES), NativeFunction.integer(value, "setInt"));
+  }
+
+  /**
+   * @return the byte as a number from 0 to 255
+   */
+  Object getByte(Object index) {
+    return Values.number(bytes.get(offset(index, 1)) & 0xff);
+  }
+
+  /**
+   * Stores the low eight bits, so -1 and 255 store the same byte.
+   */
+  void setByte(Object index, Object value) {
+    int integer = NativeFunction.integer(value, "setByte");
+    if (integer < Byte.MIN_VALUE || integer > 255)
+      throw new NativeError("Byte value " + integer + " is out of range.");
+    bytes.put(offset(index, 1), (byte) integer);
+  }
+
+  /**
+   * @return a buffer over bytes from up to but not including to
+   */
+  LoxBuffer slice(int from, int to) {
+    if (from < 0 || to < from || to > size())
+      throw new NativeError("Slice range is out of bounds.");
+    return new LoxBuffer(bytes.slice(from, to - from));
+  }
+
+  /**
+   * Copies bytes like {@link System#arraycopy}, so the ranges may overlap.
+   */
+  static void copy(LoxBuffer from, int fromOffset, LoxBuffer to, int toOffset, int count) {
+    if (count < 0 || fromOffset < 0 || toOffset < 0 || fromOffset + count > from.size()
+        || toOffset + count > to.size())
+      throw new NativeError("Copy range is out of bounds.");
+    to.bytes.put(toOffset, from.bytes, fromOffset, count);
+  }
+
+  /**
+   * @return a view of the whole doubles in the buffer
+   */
+  DoubleBuffer doubles() {
+    return bytes.asDoubleBuffer();
+  }
+
+  private int offset(Object index, int width) {
+    if (!(index instanceof Long))
+      throw new NativeError("Buffer index must be an integer.");
+    long position = (long) index;
+    if (position < 0 || position >= size() / width)
+      throw new NativeError("Buffer index " + position + " is out of bounds.");
+    return (int) position * width;
+  }
+
+  @Override
+  public String toString() {
+    return "<buffer " + size() + " bytes>";
+  }
+}
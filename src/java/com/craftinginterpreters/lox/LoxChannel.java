@@ -0,0 +1,310 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The value behind the Channel native: a bounded queue that tasks pass values
+ * through. <br />
+ * <br />
+ *
+ * Sending to a full channel waits for room and receiving from an empty one
+ * waits for a value, so a fast stage of a pipeline is held back by the slower
+ * one after it. Waiting goes through a {@link ReentrantLock} rather than a
+ * monitor, which parks a virtual thread without holding on to the carrier
+ * thread under it. A task on a {@link ForkJoinPool} worker waits through
+ * {@link ForkJoinPool#managedBlock}, so the pool starts another worker while it
+ * waits and the task it waits for still gets to run. <br />
+ * <br />
+ *
+ * Closing a channel lets receivers take what is left and then get nil, and a
+ * for-in loop over a channel runs until then. Sending to a closed channel is
+ * an error. The poll and select natives receive from whichever of several
+ * channels has a value, see {@link #select}.
+ */
+final class LoxChannel implements LoxIterable {
+  /**
+   * What {@link #tryReceive} returns when there is nothing to receive yet.
+   */
+  private static final Object EMPTY = new Object();
+
+  /**
+   * What {@link #tryReceive} returns when there never will be.
+   */
+  private static final Object DRAINED = new Object();
+
+  private final Object[] items;
+  private int head = 0;
+  private int count = 0;
+  private boolean closed = false;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+
+  /**
+   * Threads blocked in {@link #select} on this channel among others.
+   */
+  private final List<Thread> selectors = new ArrayList<>();
+
+  LoxChannel(int capacity) {
+    if (capacity <= 0)
+      throw new NativeError("Channel capacity must be positive.");
+    this.items = new Object[capacity];
+  }
+
+  static LoxChannel cast(Object value, String function) {
+    if (value instanceof LoxChannel)
+      return (LoxChannel) value;
+    throw new NativeError("Expected a channel argument to " + function + "().");
+  }
+
+  void send(Object value) {
+    lock.lock();
+    try {
+      while (count == items.length && !closed) {
+        await(notFull);
+      }
+      if (closed)
+        throw new NativeError("Can't send to a closed channel.");
+
+      items[(head + count) % items.length] = value;
+      count++;
+      notEmpty.signal();
+      wakeSelectors();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the next value, or nil once the channel is closed and empty
+   */
+  Object receive() {
+    Object value = receiveOrDrained();
+    return value == DRAINED ? null : value;
+  }
+
+  private Object receiveOrDrained() {
+    lock.lock();
+    try {
+      while (count == 0 && !closed) {
+        await(notEmpty);
+      }
+      return tryReceive();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the next value, {@link #EMPTY} if there is none yet or
+   *         {@link #DRAINED} if there never will be
+   */
+  private Object tryReceive() {
+    lock.lock();
+    try {
+      if (count == 0)
+        return closed ? DRAINED : EMPTY;
+
+      Object value = items[head];
+      items[head] = null;
+      head = (head + 1) % items.length;
+      count--;
+      notFull.signal();
+      return value;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void close() {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signalAll();
+      notFull.signalAll();
+      wakeSelectors();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Receives from the first of several channels that has a value.
+   *
+   * @param channels an array of channels
+   * @param wait     whether to wait until one has a value
+   * @return an array holding the index of the channel and the value, or nil if
+   *         there was nothing to receive without waiting or all channels are
+   *         closed and empty
+   */
+  static Object select(LoxArray channels, boolean wait, String function) {
+    LoxChannel[] candidates = new LoxChannel[channels.size()];
+    for (int i = 0; i < candidates.length; i++) {
+      candidates[i] = cast(channels.get(Values.number(i)), function);
+    }
+
+    Thread self = Thread.currentThread();
+    while (true) {
+      boolean open = false;
+      for (int i = 0; i < candidates.length; i++) {
+        Object value = candidates[i].tryReceive();
+        if (value == DRAINED)
+          continue;
+        open = true;
+        if (value != EMPTY) {
+          LoxArray result = new LoxArray(0);
+          result.push(Values.number(i));
+          result.push(value);
+          return result;
+        }
+      }
+      if (!open || !wait)
+        return null;
+
+      // Every channel gets to wake this thread before it parks, and they are
+      // checked again, so a value that arrived in between is not missed.
+      for (LoxChannel channel : candidates) {
+        channel.addSelector(self);
+      }
+      try {
+        if (!anyReady(candidates))
+          block(new Parking(candidates));
+      } finally {
+        for (LoxChannel channel : candidates) {
+          channel.removeSelector(self);
+        }
+      }
+    }
+  }
+
+  private static boolean anyReady(LoxChannel[] channels) {
+    for (LoxChannel channel : channels) {
+      if (channel.isReady())
+        return true;
+    }
+    return false;
+  }
+
+  private boolean isReady() {
+    lock.lock();
+    try {
+      return count > 0 || closed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void addSelector(Thread thread) {
+    lock.lock();
+    try {
+      selectors.add(thread);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void removeSelector(Thread thread) {
+    lock.lock();
+    try {
+      selectors.remove(thread);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void wakeSelectors() {
+    for (Thread selector : selectors) {
+      LockSupport.unpark(selector);
+    }
+  }
+
+  /**
+   * Waits on a condition of the lock, which the caller holds.
+   */
+  private static void await(Condition condition) {
+    block(new ForkJoinPool.ManagedBlocker() {
+      @Override
+      public boolean block() {
+        condition.awaitUninterruptibly();
+        return true;
+      }
+
+      @Override
+      public boolean isReleasable() {
+        return false;
+      }
+    });
+  }
+
+  /**
+   * Parks a selecting thread until one of its channels wakes it.
+   */
+  private static final class Parking implements ForkJoinPool.ManagedBlocker {
+    private final LoxChannel[] channels;
+
+    Parking(LoxChannel[] channels) {
+      this.channels = channels;
+    }
+
+    @Override
+    public boolean block() {
+      LockSupport.park(this);
+      return true;
+    }
+
+    @Override
+    public boolean isReleasable() {
+      return anyReady(channels);
+    }
+  }
+
+  private static void block(ForkJoinPool.ManagedBlocker blocker) {
+    if (!ForkJoinTask.inForkJoinPool()) {
+      try {
+        blocker.block();
+      } catch (InterruptedException error) {
+        Thread.currentThread().interrupt();
+      }
+      return;
+    }
+
+    try {
+      ForkJoinPool.managedBlock(blocker);
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public LoxIterator iterator() {
+    return new LoxIterator() {
+      private Object next = EMPTY;
+
+      @Override
+      public boolean hasNext() {
+        if (next == EMPTY)
+          next = receiveOrDrained();
+        return next != DRAINED;
+      }
+
+      @Override
+      public Object next() {
+        Object value = next;
+        next = EMPTY;
+        return value;
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return "<channel>";
+  }
+}
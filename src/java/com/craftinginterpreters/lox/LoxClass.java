@@ -0,0 +1,73 @@
+package com.craftinginterpreters.lox;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+class LoxClass implements LoxCallable, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  final String name;
+  final LoxClass superclass;
+  private final Map<String, LoxFunction> methods;
+  private final LoxFunction initializer;
+
+  /**
+   * The shape of new instances, see {@link Shape}.
+   */
+  final Shape shape = new Shape(this);
+
+  /**
+   * The most fields any shape of this class has, so that new instances get
+   * enough room for the fields their initializer is likely to add.
+   */
+  private volatile int expectedFields = 0;
+
+  LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+    this.name = name;
+    this.superclass = superclass;
+    this.methods = methods;
+    this.initializer = findMethod("init");
+  }
+
+  LoxFunction findMethod(String name) {
+    LoxFunction method = methods.get(name);
+    if (method != null)
+      return method;
+
+    if (superclass != null)
+      return superclass.findMethod(name);
+    return null;
+  }
+
+  int expectedFields() {
+    return expectedFields;
+  }
+
+  void expectFields(int count) {
+    if (count > expectedFields)
+      expectedFields = count;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  @Override
+  public int arity() {
+    if (initializer == null)
+      return 0;
+    return initializer.arity();
+  }
+
+  @Override
+  public Object call(Interpreter interpreter, List<Object> arguments) {
+    LoxInstance instance = new LoxInstance(this);
+    if (initializer != null) {
+      initializer.call(interpreter, arguments, instance);
+    }
+
+    return instance;
+  }
+}
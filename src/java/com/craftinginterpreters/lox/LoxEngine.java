@@ -0,0 +1,178 @@
+package com.craftinginterpreters.lox;
+
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs Lox programs inside a Java application. <br />
+ * <br />
+ *
+ * {@link #compile} does everything up to running a program and returns a
+ * {@link CompiledScript} that never changes afterwards. {@link #execute} runs a
+ * compiled script in an interpreter of its own with fresh globals, so any
+ * number of threads can run the same script at once and no run sees the
+ * variables of another. Errors are not printed: they come back in the
+ * {@link CompiledScript} and the {@link Result}. <br />
+ * <br />
+ *
+ * An engine holds its options, which the command line sets from its flags,
+ * and the {@link Modules} that scripts import, so that every run shares them.
+ * One engine can be shared by the whole application.
+ */
+public final class LoxEngine {
+  /**
+   * Resolve variables while parsing instead of in a separate {@link Resolver}
+   * pass.
+   */
+  boolean fusedResolve = false;
+
+  /**
+   * Only brace-match function bodies and parse them on their first call. The
+   * body then becomes part of the script when it is first called, so only the
+   * command line's own compilation does this, and {@link #compile} parses
+   * every body up front.
+   */
+  boolean lazyFunctions = false;
+
+  /**
+   * Infer static types and let the interpreter use them for arithmetic.
+   */
+  boolean staticTypes = false;
+
+  /**
+   * Infer static types only to report on them.
+   */
+  boolean inferTypes = false;
+
+  /**
+   * Run the {@link Optimizer}, and let it do loop-invariant code motion.
+   */
+  boolean optimize = true;
+  boolean hoisting = true;
+
+  private final Modules modules = new Modules(this);
+
+  /**
+   * The outcome of running a script.
+   */
+  public static final class Result {
+    private final List<String> errors;
+
+    private Result(List<String> errors) {
+      this.errors = Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * @return whether the script compiled and ran without a runtime error
+     */
+    public boolean succeeded() {
+      return errors.isEmpty();
+    }
+
+    /**
+     * @return the compile errors, or the runtime error, formatted like the
+     *         command line prints them
+     */
+    public List<String> errors() {
+      return errors;
+    }
+  }
+
+  public LoxEngine() {
+  }
+
+  /**
+   * @param source the code of a whole program, whose imports are relative to
+   *               the working directory
+   * @return the compiled program, which may have errors
+   */
+  public CompiledScript compile(String source) {
+    return compile(source, null);
+  }
+
+  /**
+   * @param source the code of a whole program
+   * @param file   the file the code was read from, whose directory the imports
+   *               are relative to, or null for the working directory
+   * @return the compiled program, which may have errors
+   */
+  public CompiledScript compile(String source, Path file) {
+    Compilation compilation = new Compilation(this, new ErrorReporter(), new Resolution(false), false);
+    List<Stmt> statements = compilation.compile(source);
+    Path directory = file == null ? null : file.toAbsolutePath().getParent();
+    return new CompiledScript(statements, compilation.resolution, directory, compilation.reporter.errors());
+  }
+
+  /**
+   * Runs a script, printing to standard output.
+   */
+  public Result execute(CompiledScript script) {
+    try {
+      return execute(script, Lox.out);
+    } finally {
+      Lox.out.flush();
+    }
+  }
+
+  /**
+   * Runs a script, printing to a stream of the caller's.
+   */
+  public Result execute(CompiledScript script, OutputStream output) {
+    OutputBuffer out = new OutputBuffer(Channels.newChannel(output), Charset.defaultCharset());
+    try {
+      return execute(script, out);
+    } finally {
+      out.flush();
+    }
+  }
+
+  private Result execute(CompiledScript script, OutputBuffer out) {
+    if (script.hasErrors())
+      return new Result(script.errors());
+
+    ErrorReporter reporter = new ErrorReporter();
+    execute(script, out, reporter);
+    return new Result(reporter.errors());
+  }
+
+  /**
+   * Runs a script that compiled without errors, and closes the writers it left
+   * open.
+   */
+  void execute(CompiledScript script, OutputBuffer out, ErrorReporter reporter) {
+    Interpreter interpreter = interpreter(script.resolution, out);
+    interpreter.globals.useDirectory(script.directory);
+    try {
+      interpreter.interpret(script.statements, reporter);
+    } finally {
+      LoxWriter.closeAll(interpreter.globals);
+    }
+  }
+
+  /**
+   * @return a new interpreter with fresh globals for a compiled program
+   */
+  Interpreter interpreter(Resolution resolution, OutputBuffer out) {
+    Interpreter interpreter = new Interpreter(resolution, out);
+    if (staticTypes)
+      interpreter.useStaticTypes();
+    interpreter.useModules(modules);
+    return interpreter;
+  }
+
+  /**
+   * @return a new interpreter that starts from globals restored from a
+   *         {@link Snapshot}
+   */
+  Interpreter interpreter(Resolution resolution, OutputBuffer out, Globals globals) {
+    Interpreter interpreter = new Interpreter(resolution, out, globals);
+    if (staticTypes)
+      interpreter.useStaticTypes();
+    interpreter.useModules(modules);
+    return interpreter;
+  }
+}
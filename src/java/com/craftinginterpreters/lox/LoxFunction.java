@@ -1,14 +1,57 @@
 package com.craftinginterpreters.lox;
 
+import java.io.Serializable;
 import java.util.List;
 
-class LoxFunction implements LoxCallable {
+class LoxFunction implements LoxCallable, Serializable {
+  private static final long serialVersionUID = 1L;
+
   private final Stmt.Function declaration;
   private final Environment closure;
+  private final boolean isInitializer;
+
+  /**
+   * The instance a method was looked up on, which the call defines as this.
+   */
+  private final LoxInstance receiver;
+
+  /**
+   * The globals of the module the function was declared in, which its body
+   * runs with whoever calls it.
+   */
+  private final Globals home;
+
+  LoxFunction(Stmt.Function declaration, Environment closure, Globals home) {
+    this(declaration, closure, home, false, null);
+  }
 
-  LoxFunction(Stmt.Function declaration, Environment closure) {
+  LoxFunction(Stmt.Function declaration, Environment closure, Globals home, boolean isInitializer) {
+    this(declaration, closure, home, isInitializer, null);
+  }
+
+  private LoxFunction(Stmt.Function declaration, Environment closure, Globals home, boolean isInitializer,
+      LoxInstance receiver) {
     this.closure = closure;
     this.declaration = declaration;
+    this.home = home;
+    this.isInitializer = isInitializer;
+    this.receiver = receiver;
+  }
+
+  LoxFunction bind(LoxInstance instance) {
+    return new LoxFunction(declaration, closure, home, isInitializer, instance);
+  }
+
+  String name() {
+    return declaration.name.lexeme;
+  }
+
+  Stmt.Function declaration() {
+    return declaration;
+  }
+
+  Globals home() {
+    return home;
   }
 
   @Override
@@ -23,16 +66,42 @@ class LoxFunction implements LoxCallable {
 
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
+    return call(interpreter, arguments, receiver);
+  }
+
+  /**
+   * Calls a method on an instance without binding it first.
+   *
+   * @param receiver the value of this, or null for a function
+   */
+  Object call(Interpreter interpreter, List<Object> arguments, LoxInstance receiver) {
+    if (declaration.generator)
+      return new LoxGenerator(interpreter, this, arguments, receiver);
+    return execute(interpreter, arguments, receiver);
+  }
+
+  /**
+   * Runs the body, which for a generator happens on its own thread.
+   */
+  Object execute(Interpreter interpreter, List<Object> arguments, LoxInstance receiver) {
+    interpreter = interpreter.enter(home);
     Environment environment = new Environment(closure);
+    if (receiver != null)
+      environment.define("this", receiver);
     for (int i = 0; i < declaration.params.size(); i++) {
-      environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+      interpreter.declare(environment, declaration.params.get(i), arguments.get(i));
     }
 
     try {
       interpreter.executeBlock(declaration.body, environment);
     } catch (Return returnValue) {
+      if (isInitializer)
+        return receiver;
       return returnValue.value;
     }
+
+    if (isInitializer)
+      return receiver;
     return null;
   }
-}
\ No newline at end of file
+}
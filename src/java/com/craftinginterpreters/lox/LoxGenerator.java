@@ -0,0 +1,151 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * What calling a function that contains <code>yield</code> returns: the
+ * function's body, suspended until a for-in loop asks for the next element.
+ * <br />
+ * <br />
+ *
+ * A tree-walking interpreter keeps its place in the Java stack, so the body
+ * runs on a thread of its own, with an {@link Interpreter#fork} of its own,
+ * and stays parked at a yield until the next element is wanted. That thread is
+ * virtual where the JVM has virtual threads, see {@link LoxTask}. Control
+ * passes back and forth through two semaphores and only one side runs at a
+ * time. <br />
+ * <br />
+ *
+ * Closing a generator that has not finished wakes the body up with
+ * {@link Closed}, which unwinds it like a return, and waits until it is gone.
+ * A for-in loop closes its generator even when it breaks out early, so no
+ * thread stays parked behind a loop that is gone, and a generator is only
+ * ever walked by one loop.
+ */
+final class LoxGenerator implements LoxIterable, LoxIterator {
+  /**
+   * Thrown at the yield of a generator that is closed early.
+   */
+  private static final class Closed extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Closed() {
+      super(null, null, false, false);
+    }
+  }
+
+  private final Interpreter interpreter;
+  private final LoxFunction function;
+  private final List<Object> arguments;
+  private final LoxInstance receiver;
+
+  private final Semaphore body = new Semaphore(0);
+  private final Semaphore caller = new Semaphore(0);
+  private Thread thread = null;
+
+  private Object value = null;
+  private boolean ready = false;
+  private boolean done = false;
+  private boolean running = false;
+  private boolean closing = false;
+  private Throwable failure = null;
+
+  LoxGenerator(Interpreter interpreter, LoxFunction function, List<Object> arguments, LoxInstance receiver) {
+    this.interpreter = interpreter.fork(this);
+    this.function = function;
+    this.arguments = arguments;
+    this.receiver = receiver;
+  }
+
+  @Override
+  public LoxIterator iterator() {
+    return this;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (!ready && !done)
+      resume();
+
+    if (failure != null) {
+      Throwable error = failure;
+      failure = null;
+      if (error instanceof Error)
+        throw (Error) error;
+      throw (RuntimeException) error;
+    }
+    return ready;
+  }
+
+  @Override
+  public Object next() {
+    ready = false;
+    Object result = value;
+    value = null;
+    return result;
+  }
+
+  @Override
+  public void close() {
+    if (thread == null) {
+      done = true;
+      return;
+    }
+    if (done)
+      return;
+
+    closing = true;
+    resume();
+  }
+
+  /**
+   * Runs the body until it yields or ends. Called on the thread of the loop.
+   */
+  private void resume() {
+    if (running)
+      throw new NativeError("Generator is already running.");
+    running = true;
+
+    if (thread == null) {
+      thread = LoxTask.newThread(this::run, "lox-generator");
+      thread.start();
+    } else {
+      body.release();
+    }
+    caller.acquireUninterruptibly();
+
+    running = false;
+  }
+
+  /**
+   * Hands a value to the loop and waits until it wants the next one. Called on
+   * the generator's thread.
+   */
+  void yield(Object element) {
+    value = element;
+    ready = true;
+    caller.release();
+    body.acquireUninterruptibly();
+
+    if (closing)
+      throw new Closed();
+  }
+
+  private void run() {
+    try {
+      function.execute(interpreter, arguments, receiver);
+    } catch (Closed closed) {
+      // Closed early on purpose.
+    } catch (RuntimeException | Error error) {
+      failure = error;
+    }
+    done = true;
+    caller.release();
+  }
+
+  @Override
+  public String toString() {
+    return "<generator " + function.name() + ">";
+  }
+}
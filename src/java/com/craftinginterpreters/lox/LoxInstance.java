@@ -0,0 +1,61 @@
+package com.craftinginterpreters.lox;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An instance of a {@link LoxClass}. The fields are values in an array, laid
+ * out by the instance's current {@link Shape}, and every access goes through
+ * the {@link PropertyCache} of the node doing it.
+ */
+class LoxInstance implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private Shape shape;
+  private Object[] fields;
+
+  LoxInstance(LoxClass klass) {
+    this.shape = klass.shape;
+    this.fields = new Object[klass.expectedFields()];
+  }
+
+  Object get(Token name, PropertyCache cache) {
+    PropertyCache.Entry entry = cache.get(shape, name.lexeme);
+    if (entry.slot >= 0)
+      return fields[entry.slot];
+    if (entry.method != null)
+      return entry.method.bind(this);
+
+    throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+  }
+
+  /**
+   * Looks up a property that is about to be called.
+   *
+   * @return the method, or null if the property is a field
+   */
+  LoxFunction method(Token name, PropertyCache cache) {
+    PropertyCache.Entry entry = cache.get(shape, name.lexeme);
+    if (entry.slot >= 0)
+      return null;
+    if (entry.method != null)
+      return entry.method;
+
+    throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+  }
+
+  void set(Token name, Object value, PropertyCache cache) {
+    PropertyCache.Entry entry = cache.set(shape, name.lexeme);
+    if (entry.next != null) {
+      if (entry.slot == fields.length)
+        fields = Arrays.copyOf(fields, Math.max(4, fields.length * 2));
+      shape = entry.next;
+    }
+    fields[entry.slot] = value;
+  }
+
+  @Override
+  public String toString() {
+    return shape.owner.name + " instance";
+  }
+}
@@ -0,0 +1,10 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * A value that <code>for (x in value)</code> can walk. Elements are pulled
+ * from the {@link LoxIterator} one at a time, so nothing builds the whole
+ * sequence up front.
+ */
+interface LoxIterable {
+  LoxIterator iterator();
+}
@@ -0,0 +1,25 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * Produces the elements of a {@link LoxIterable} on demand. <br />
+ * <br />
+ *
+ * Implementations throw {@link NativeError} for anything that goes wrong while
+ * producing an element. A for-in loop always closes its iterator when it ends,
+ * also when the body breaks out of it or fails.
+ */
+interface LoxIterator extends AutoCloseable {
+  boolean hasNext();
+
+  /**
+   * Only called after {@link #hasNext()} returned true.
+   */
+  Object next();
+
+  /**
+   * Releases whatever the iterator holds on to, like an open file.
+   */
+  @Override
+  default void close() {
+  }
+}
@@ -0,0 +1,290 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The value behind the Map native: a hash table keyed by numbers, strings,
+ * booleans and nil, indexed with <code>map[key]</code>. <br />
+ * <br />
+ *
+ * The table uses open addressing with linear probing over parallel arrays, so
+ * an entry costs a few array slots instead of a node object. Number keys are
+ * stored unboxed as the bits of their double value, which makes an integer
+ * and the same double the same key, and other keys are stored next to their
+ * hash so that probing and growing never hash a string twice. Removing an
+ * entry shifts the entries after it back, so there are no tombstones. <br />
+ * <br />
+ *
+ * Slots without a number key hold one of two NaN bit patterns that
+ * {@link Double#doubleToLongBits} never returns, so looking up a number only
+ * ever reads the array of numbers until it finds the key. <br />
+ * <br />
+ *
+ * A snapshot stores the entries, and restoring one puts them into a new table,
+ * since a nil key is a sentinel that only means nil in the running program.
+ */
+final class LoxMap implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private static final long EMPTY = 0x7ff0000000000001L;
+  private static final long OBJECT = 0x7ff0000000000002L;
+
+  /**
+   * Stands in for nil as a key, so that every object key is non-null.
+   */
+  private static final Object NIL = new Object();
+
+  private transient long[] numbers;
+  private transient Object[] keys;
+  private transient int[] hashes;
+  private transient Object[] values;
+  private transient int size = 0;
+
+  LoxMap() {
+    allocate(16);
+  }
+
+  /**
+   * @param value    an argument to a native
+   * @param function the native, for the error message
+   * @return the argument as a map
+   */
+  static LoxMap cast(Object value, String function) {
+    if (value instanceof LoxMap)
+      return (LoxMap) value;
+    throw new NativeError("Expected a map argument to " + function + "().");
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return the value for the key, or nil if there is none
+   */
+  Object get(Object key) {
+    int slot = find(key);
+    return slot >= 0 ? values[slot] : null;
+  }
+
+  boolean has(Object key) {
+    return find(key) >= 0;
+  }
+
+  void set(Object key, Object value) {
+    if ((size + 1) * 4 > numbers.length * 3)
+      grow();
+
+    int mask = numbers.length - 1;
+    if (Values.isNumber(key)) {
+      long bits = Double.doubleToLongBits(Values.toDouble(key));
+      for (int slot = hash(bits) & mask;; slot = (slot + 1) & mask) {
+        if (numbers[slot] == EMPTY) {
+          numbers[slot] = bits;
+          values[slot] = value;
+          size++;
+          return;
+        }
+        if (numbers[slot] == bits) {
+          values[slot] = value;
+          return;
+        }
+      }
+    }
+
+    Object object = objectKey(key);
+    int hash = object.hashCode();
+    for (int slot = mix(hash) & mask;; slot = (slot + 1) & mask) {
+      if (numbers[slot] == EMPTY) {
+        numbers[slot] = OBJECT;
+        keys[slot] = object;
+        hashes[slot] = hash;
+        values[slot] = value;
+        size++;
+        return;
+      }
+      if (numbers[slot] == OBJECT && hashes[slot] == hash && keys[slot].equals(object)) {
+        values[slot] = value;
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return the value that was removed, or nil if there was none
+   */
+  Object remove(Object key) {
+    int slot = find(key);
+    if (slot < 0)
+      return null;
+
+    Object value = values[slot];
+    int mask = numbers.length - 1;
+
+    // Move later entries of the same run into the hole when their home slot
+    // is not between the hole and where they are now.
+    int hole = slot;
+    for (int next = (hole + 1) & mask; numbers[next] != EMPTY; next = (next + 1) & mask) {
+      int home = home(next) & mask;
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        move(next, hole);
+        hole = next;
+      }
+    }
+    clear(hole);
+    size--;
+    return value;
+  }
+
+  LoxArray keys() {
+    LoxArray result = new LoxArray(0);
+    for (int slot = 0; slot < numbers.length; slot++) {
+      if (numbers[slot] != EMPTY)
+        result.push(keyAt(slot));
+    }
+    return result;
+  }
+
+  LoxArray values() {
+    LoxArray result = new LoxArray(0);
+    for (int slot = 0; slot < numbers.length; slot++) {
+      if (numbers[slot] != EMPTY)
+        result.push(values[slot]);
+    }
+    return result;
+  }
+
+  private int find(Object key) {
+    int mask = numbers.length - 1;
+    if (Values.isNumber(key)) {
+      long bits = Double.doubleToLongBits(Values.toDouble(key));
+      for (int slot = hash(bits) & mask; numbers[slot] != EMPTY; slot = (slot + 1) & mask) {
+        if (numbers[slot] == bits)
+          return slot;
+      }
+      return -1;
+    }
+
+    Object object = objectKey(key);
+    int hash = object.hashCode();
+    for (int slot = mix(hash) & mask; numbers[slot] != EMPTY; slot = (slot + 1) & mask) {
+      if (numbers[slot] == OBJECT && hashes[slot] == hash && keys[slot].equals(object))
+        return slot;
+    }
+    return -1;
+  }
+
+  private static Object objectKey(Object key) {
+    if (key == null)
+      return NIL;
+    if (key instanceof CharSequence)
+      return key.toString();
+    if (key instanceof Boolean)
+      return key;
+    throw new NativeError("Map keys must be numbers, strings, booleans or nil.");
+  }
+
+  private Object keyAt(int slot) {
+    if (numbers[slot] != OBJECT)
+      return Values.number(Double.longBitsToDouble(numbers[slot]));
+    return keys[slot] == NIL ? null : keys[slot];
+  }
+
+  private int home(int slot) {
+    return numbers[slot] != OBJECT ? hash(numbers[slot]) : mix(hashes[slot]);
+  }
+
+  private static int hash(long bits) {
+    bits ^= bits >>> 33;
+    bits *= 0xff51afd7ed558ccdL;
+    bits ^= bits >>> 33;
+    return (int) bits;
+  }
+
+  private static int mix(int hash) {
+    hash *= 0x9e3779b9;
+    return hash ^ (hash >>> 16);
+  }
+
+  private void move(int from, int to) {
+    numbers[to] = numbers[from];
+    keys[to] = keys[from];
+    hashes[to] = hashes[from];
+    values[to] = values[from];
+  }
+
+  private void clear(int slot) {
+    numbers[slot] = EMPTY;
+    keys[slot] = null;
+    values[slot] = null;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.writeInt(size);
+    for (int slot = 0; slot < numbers.length; slot++) {
+      if (numbers[slot] != EMPTY) {
+        out.writeObject(keyAt(slot));
+        out.writeObject(values[slot]);
+      }
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    int count = in.readInt();
+    allocate(16);
+    for (int i = 0; i < count; i++) {
+      set(in.readObject(), in.readObject());
+    }
+  }
+
+  private void allocate(int capacity) {
+    numbers = new long[capacity];
+    Arrays.fill(numbers, EMPTY);
+    keys = new Object[capacity];
+    hashes = new int[capacity];
+    values = new Object[capacity];
+  }
+
+  private void grow() {
+    long[] oldNumbers = numbers;
+    Object[] oldKeys = keys;
+    int[] oldHashes = hashes;
+    Object[] oldValues = values;
+
+    allocate(oldNumbers.length * 2);
+    int mask = numbers.length - 1;
+    for (int i = 0; i < oldNumbers.length; i++) {
+      if (oldNumbers[i] == EMPTY)
+        continue;
+
+      int slot = (oldNumbers[i] != OBJECT ? hash(oldNumbers[i]) : mix(oldHashes[i])) & mask;
+      while (numbers[slot] != EMPTY) {
+        slot = (slot + 1) & mask;
+      }
+      numbers[slot] = oldNumbers[i];
+      keys[slot] = oldKeys[i];
+      hashes[slot] = oldHashes[i];
+      values[slot] = oldValues[i];
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("{");
+    boolean first = true;
+    for (int slot = 0; slot < numbers.length; slot++) {
+      if (numbers[slot] == EMPTY)
+        continue;
+      if (!first)
+        builder.append(", ");
+      first = false;
+      builder.append(Interpreter.stringify(keyAt(slot))).append(": ");
+      builder.append(values[slot] == this ? "{...}" : Interpreter.stringify(values[slot]));
+    }
+    return builder.append("}").toString();
+  }
+}
@@ -0,0 +1,74 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * A module that a run imported, whose properties are the globals its code
+ * defines. <br />
+ * <br />
+ *
+ * The code of a module runs the first time one of its properties is read,
+ * which may be long after the import, or never. It runs once per run, however
+ * many imports of the file the run executes, with globals of its own that hold
+ * nothing but the natives at first. A module that reads a property of a module
+ * that is still running, like one that imports it back, sees the globals that
+ * were defined so far.
+ */
+final class LoxModule {
+  private final String name;
+  private final Modules.Module module;
+  private final Globals namespace;
+  private boolean started = false;
+  private volatile boolean done = false;
+
+  /**
+   * @param importer the globals of the code that imported the module first
+   */
+  LoxModule(String name, Modules.Module module, Globals importer) {
+    this.name = name;
+    this.module = module;
+    this.namespace = new Globals(module.script.resolution, importer);
+    namespace.useDirectory(module.script.directory);
+    Interpreter.defineNatives(namespace);
+  }
+
+  /**
+   * @param interpreter the interpreter of the thread reading the property
+   */
+  Object get(Token property, Interpreter interpreter) {
+    if (!done)
+      start(interpreter);
+
+    try {
+      return namespace.get(property);
+    } catch (RuntimeError error) {
+      throw new RuntimeError(property, "Module '" + name + "' has no variable '" + property.lexeme + "'.");
+    }
+  }
+
+  /**
+   * Runs the code of the module. A property read on another thread waits until
+   * it is done, and one on this thread, from the code itself, does not.
+   */
+  private synchronized void start(Interpreter interpreter) {
+    if (started)
+      return;
+    started = true;
+
+    try {
+      interpreter.enter(namespace).executeBlock(module.script.statements, namespace);
+    } finally {
+      done = true;
+    }
+  }
+
+  /**
+   * @return the globals of the module's code
+   */
+  Globals namespace() {
+    return namespace;
+  }
+
+  @Override
+  public String toString() {
+    return "<module " + name + ">";
+  }
+}
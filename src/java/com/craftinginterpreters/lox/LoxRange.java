@@ -0,0 +1,44 @@
+package com.craftinginterpreters.lox;
+
+import java.io.Serializable;
+
+/**
+ * The value behind the range native: the numbers from a start up to, but not
+ * including, an end, counting by one. A range only stores its bounds.
+ */
+final class LoxRange implements LoxIterable, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final double start;
+  private final double end;
+
+  LoxRange(double start, double end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  @Override
+  public LoxIterator iterator() {
+    return new LoxIterator() {
+      private double next = start;
+
+      @Override
+      public boolean hasNext() {
+        return next < end;
+      }
+
+      @Override
+      public Object next() {
+        Object value = Values.number(next);
+        next += 1;
+        return value;
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return "range(" + Interpreter.stringify(Values.number(start)) + ", "
+        + Interpreter.stringify(Values.number(end)) + ")";
+  }
+}
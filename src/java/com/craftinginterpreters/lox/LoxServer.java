@@ -0,0 +1,343 @@
+package com.craftinginterpreters.lox;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs scripts for clients that connect to a Unix domain socket, so that they
+ * do not pay for starting a JVM and warming up the interpreter on every run.
+ * <br />
+ * <br />
+ *
+ * <code>jlox --server</code> starts the server and <code>jlox --connect
+ * script</code> sends it the source of a script. The server prints nothing of
+ * its own: what the script prints comes back to the client on standard output,
+ * its errors come back on standard error, and the client exits with the status
+ * the command line would have, 65 for compile errors and 70 for a runtime
+ * error. Requests run at the same time, each on a thread of its own and with
+ * fresh globals, so no run sees the variables of another. <br />
+ * <br />
+ *
+ * Compiled scripts are cached by the SHA-256 of their source, so running the
+ * same script again skips straight to the interpreter. The server compiles
+ * every script with the options it was started with, and without
+ * <code>--lazy</code>, since a lazily parsed script changes as it runs. Paths in
+ * a script, imports included, are relative to the directory of the server.
+ * <br />
+ * <br />
+ *
+ * The socket is jlox.sock in XDG_RUNTIME_DIR unless one is given. Without
+ * that variable it goes in a directory of the user's under the temporary
+ * directory, which only the user can reach. The server only replaces a socket
+ * left at its path if the user owns it. <br />
+ * <br />
+ *
+ * A request is the length of the source as an int, then the source. The
+ * response is a sequence of frames, each a kind byte and an int: the length of
+ * output that follows, or for {@link #EXIT} the exit status, which is the last
+ * frame.
+ */
+final class LoxServer {
+  private static final byte OUT = 1;
+  private static final byte ERR = 2;
+  private static final byte EXIT = 0;
+
+  /**
+   * How many compiled scripts to keep, the least recently run going first.
+   */
+  private static final int CACHE_SIZE = 256;
+
+  /**
+   * The longest script a client may send, in bytes, so that a bad length can't
+   * make the server allocate without bound.
+   */
+  private static final int MAX_SCRIPT = 64 << 20;
+
+  private static final Set<PosixFilePermission> PRIVATE = EnumSet.of(PosixFilePermission.OWNER_READ,
+      PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE);
+
+  private final LoxEngine engine;
+  private final Map<String, CompiledScript> cache = Collections
+      .synchronizedMap(new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+          return size() > CACHE_SIZE;
+        }
+      });
+
+  private LoxServer(LoxEngine engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * @return the socket to use when none is given, one per user: in
+   *         XDG_RUNTIME_DIR, which only the user can reach, or else in a
+   *         directory of the user's own under the temporary directory
+   */
+  static Path defaultSocket() {
+    String runtime = System.getenv("XDG_RUNTIME_DIR");
+    if (runtime != null && !runtime.isEmpty())
+      return Paths.get(runtime, "jlox.sock");
+    return privateDirectory().resolve("jlox.sock");
+  }
+
+  private static Path privateDirectory() {
+    return Paths.get(System.getProperty("java.io.tmpdir"), "jlox-" + System.getProperty("user.name"))
+        .toAbsolutePath();
+  }
+
+  /**
+   * Makes sure that nobody else can put a socket where the default one goes,
+   * since the temporary directory is shared: the directory has to be the user's
+   * and closed to everyone else.
+   *
+   * @param create whether to create the directory if there is none
+   */
+  private static void checkDirectory(Path socket, boolean create) throws IOException {
+    Path directory = socket.toAbsolutePath().getParent();
+    if (!directory.equals(privateDirectory()))
+      return;
+
+    if (Files.notExists(directory, LinkOption.NOFOLLOW_LINKS)) {
+      if (create)
+        Files.createDirectory(directory,
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+      return;
+    }
+
+    PosixFileAttributes attributes = Files.readAttributes(directory, PosixFileAttributes.class,
+        LinkOption.NOFOLLOW_LINKS);
+    if (!attributes.isDirectory() || !attributes.owner().equals(currentUser(directory))
+        || !PRIVATE.containsAll(attributes.permissions()))
+      throw new IOException("Won't use " + directory + ", since it isn't a directory only you can reach.");
+  }
+
+  private static UserPrincipal currentUser(Path path) throws IOException {
+    return path.getFileSystem().getUserPrincipalLookupService()
+        .lookupPrincipalByName(System.getProperty("user.name"));
+  }
+
+  /**
+   * Serves requests until the process is killed.
+   *
+   * @throws IOException if the socket can't be bound, or its path is taken by
+   *                     something that is not a socket of the user's
+   */
+  static void serve(LoxEngine engine, Path socket) throws IOException {
+    LoxServer server = new LoxServer(engine);
+    checkDirectory(socket, true);
+    if (Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+      // Left behind by a server that was killed, unless someone else put it
+      // there.
+      PosixFileAttributes attributes = Files.readAttributes(socket, PosixFileAttributes.class,
+          LinkOption.NOFOLLOW_LINKS);
+      if (!attributes.isOther() || !attributes.owner().equals(currentUser(socket)))
+        throw new IOException("Won't replace " + socket + ", since it isn't a socket of yours.");
+      Files.delete(socket);
+    }
+    try (ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      channel.bind(UnixDomainSocketAddress.of(socket));
+      socket.toFile().deleteOnExit();
+      while (true) {
+        SocketChannel client = channel.accept();
+        LoxTask.newThread(() -> server.handle(client), "lox-request").start();
+      }
+    }
+  }
+
+  private void handle(SocketChannel client) {
+    try (client) {
+      DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+      int length = in.readInt();
+      Frames out = new Frames(client, OUT);
+      PrintStream err = new PrintStream(Channels.newOutputStream(new Frames(client, ERR)), true);
+      if (length < 0 || length > MAX_SCRIPT) {
+        err.println("Scripts must be between 0 and " + MAX_SCRIPT + " bytes long.");
+        out.exit(65);
+        return;
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+
+      OutputBuffer buffer = new OutputBuffer(out, Charset.defaultCharset());
+      int status;
+      try {
+        status = run(bytes, buffer, err);
+      } catch (RuntimeException | StackOverflowError error) {
+        // One script going wrong inside the interpreter leaves the server to
+        // answer the others.
+        buffer.flush();
+        err.println("The interpreter failed with " + error + ".");
+        status = 70;
+      }
+      buffer.flush();
+      out.exit(status);
+    } catch (IOException error) {
+      // The client went away, and nobody is left to tell.
+    }
+  }
+
+  /**
+   * @return the exit status
+   */
+  private int run(byte[] bytes, OutputBuffer out, PrintStream err) {
+    String key = hash(bytes);
+    CompiledScript script = cache.get(key);
+    if (script == null) {
+      script = engine.compile(new String(bytes, Charset.defaultCharset()));
+      cache.put(key, script);
+    }
+
+    if (script.hasErrors()) {
+      for (String error : script.errors()) {
+        err.println(error);
+      }
+      return 65;
+    }
+
+    ErrorReporter reporter = new ErrorReporter(out, err);
+    engine.execute(script, out, reporter);
+    if (reporter.hadError())
+      return 65;
+    return reporter.hadRuntimeError() ? 70 : 0;
+  }
+
+  private static String hash(byte[] bytes) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    } catch (NoSuchAlgorithmException error) {
+      throw new IllegalStateException(error);
+    }
+  }
+
+  /**
+   * Sends a script to a server and copies what comes back to standard output
+   * and standard error.
+   *
+   * @param bytes the script
+   * @return the exit status of the script
+   * @throws SocketException if no server is listening on the socket
+   * @throws IOException     if the server closed the connection before the
+   *                         exit status
+   */
+  static int connect(Path socket, byte[] bytes) throws IOException {
+    checkDirectory(socket, false);
+    try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+      return request(channel, bytes);
+    }
+  }
+
+  private static int request(SocketChannel channel, byte[] bytes) throws IOException {
+    try {
+      ByteBuffer request = ByteBuffer.allocate(Integer.BYTES + bytes.length);
+      request.putInt(bytes.length).put(bytes).flip();
+      while (request.hasRemaining()) {
+        channel.write(request);
+      }
+
+      DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+      byte[] chunk = new byte[1 << 16];
+      while (true) {
+        byte kind = in.readByte();
+        int length = in.readInt();
+        if (kind == EXIT) {
+          System.out.flush();
+          return length;
+        }
+
+        PrintStream stream = kind == OUT ? System.out : System.err;
+        while (length > 0) {
+          int read = in.read(chunk, 0, Math.min(length, chunk.length));
+          if (read < 0)
+            throw new EOFException();
+          stream.write(chunk, 0, read);
+          length -= read;
+        }
+        if (kind == ERR)
+          System.out.flush();
+        stream.flush();
+      }
+    } catch (IOException error) {
+      System.out.flush();
+      throw new IOException("The server closed the connection.", error);
+    }
+  }
+
+  /**
+   * A channel that writes everything it is given to the client in frames of
+   * one kind. Frames of every kind share the socket, so they are written one at
+   * a time.
+   */
+  private static final class Frames implements WritableByteChannel {
+    private final SocketChannel client;
+    private final byte kind;
+
+    Frames(SocketChannel client, byte kind) {
+      this.client = client;
+      this.kind = kind;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+      int length = source.remaining();
+      synchronized (client) {
+        ByteBuffer header = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES);
+        header.put(kind).putInt(length).flip();
+        while (header.hasRemaining() || source.hasRemaining()) {
+          client.write(new ByteBuffer[] { header, source });
+        }
+      }
+      return length;
+    }
+
+    /**
+     * Ends the response.
+     */
+    void exit(int status) throws IOException {
+      ByteBuffer frame = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES);
+      frame.put(EXIT).putInt(status).flip();
+      synchronized (client) {
+        while (frame.hasRemaining()) {
+          client.write(frame);
+        }
+      }
+    }
+
+    @Override
+    public boolean isOpen() {
+      return client.isOpen();
+    }
+
+    @Override
+    public void close() {
+      // The connection outlives the streams written through it.
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.craftinginterpreters.lox;
+
+import java.io.Serializable;
+
+/**
+ * A Lox string built by concatenation. <br />
+ * <br />
+ *
+ * Concatenating onto the end of a long string appends to a buffer that is
+ * shared with the left operand, instead of copying both operands into a new
+ * String. Each LoxString only looks at the first {@link #length} characters of
+ * its buffer, so older values never change, and accumulating a string in a
+ * loop is linear instead of quadratic. <br />
+ * <br />
+ *
+ * The characters are copied into a String the first time something looks at
+ * them, like printing, comparing or passing the string to a native function.
+ */
+final class LoxString implements CharSequence, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Shorter results are plain Strings, which are cheaper to create and compare.
+   */
+  private static final int MIN_LENGTH = 64;
+
+  private final StringBuilder buffer;
+  private final int length;
+  private String flat = null;
+
+  private LoxString(StringBuilder buffer, int length) {
+    this.buffer = buffer;
+    this.length = length;
+  }
+
+  /**
+   * @param left  a String or LoxString
+   * @param right a String or LoxString
+   * @return the concatenation, as a String if it is short
+   */
+  static CharSequence concat(CharSequence left, CharSequence right) {
+    int length = left.length() + right.length();
+
+    if (left instanceof LoxString) {
+      LoxString rope = (LoxString) left;
+      synchronized (rope.buffer) {
+        // Only the newest string on a buffer can append to it.
+        if (rope.buffer.length() == rope.length) {
+          rope.buffer.append(right.toString());
+          return new LoxString(rope.buffer, length);
+        }
+      }
+    }
+
+    if (length < MIN_LENGTH) {
+      return left.toString().concat(right.toString());
+    }
+
+    StringBuilder buffer = new StringBuilder(length * 2);
+    buffer.append(left.toString()).append(right.toString());
+    return new LoxString(buffer, length);
+  }
+
+  /**
+   * @param value any Lox value
+   * @return the value, with a LoxString turned into a String
+   */
+  static Object flatten(Object value) {
+    if (value instanceof LoxString)
+      return value.toString();
+    return value;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return toString().charAt(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return toString().subSequence(start, end);
+  }
+
+  @Override
+  public String toString() {
+    String result = flat;
+    if (result == null) {
+      synchronized (buffer) {
+        result = buffer.substring(0, length);
+      }
+      flat = result;
+    }
+    return result;
+  }
+
+  /**
+   * A snapshot stores the characters, without the rest of the shared buffer.
+   */
+  private Object writeReplace() {
+    return toString();
+  }
+}
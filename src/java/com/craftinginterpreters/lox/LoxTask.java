@@ -0,0 +1,115 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The value behind the spawn and await natives: a function running
+ * concurrently with the code that spawned it, in an {@link Interpreter} of its
+ * own that shares the globals. <br />
+ * <br />
+ *
+ * Where the JVM has virtual threads, every task gets one, so a blocked task
+ * only parks itself. The interpreter still compiles against Java 17, so they
+ * are looked up by reflection. Without them tasks run in a
+ * {@link ForkJoinPool} with a worker per processor, and a worker that awaits a
+ * task which has not started yet runs it itself instead of blocking. Either
+ * way, a task costs a few small objects until it runs. <br />
+ * <br />
+ *
+ * Tasks run on daemon threads, so the program ends without waiting for tasks
+ * that nothing awaited.
+ */
+@SuppressWarnings("serial") // Tasks hold interpreters and are never serialized.
+final class LoxTask extends RecursiveTask<Object> {
+  private static final ThreadFactory virtualThreads = virtualThreadFactory();
+  private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+  private final LoxCallable function;
+  private final Interpreter interpreter;
+  private RuntimeError failure = null;
+
+  private LoxTask(LoxCallable function, Interpreter interpreter) {
+    this.function = function;
+    this.interpreter = interpreter;
+  }
+
+  /**
+   * Starts calling a function that takes no arguments.
+   *
+   * @param function    the function
+   * @param interpreter the interpreter of the code that spawns it
+   */
+  static LoxTask spawn(Object function, Interpreter interpreter) {
+    if (!(function instanceof LoxCallable) || ((LoxCallable) function).arity() != 0)
+      throw new NativeError("Can only spawn a function that takes no arguments.");
+
+    LoxTask task = new LoxTask((LoxCallable) function, interpreter.fork(null));
+    if (virtualThreads != null) {
+      virtualThreads.newThread(task::invoke).start();
+    } else {
+      pool.execute(task);
+    }
+    return task;
+  }
+
+  static LoxTask cast(Object value, String function) {
+    if (value instanceof LoxTask)
+      return (LoxTask) value;
+    throw new NativeError("Expected a task argument to " + function + "().");
+  }
+
+  @Override
+  protected Object compute() {
+    try {
+      return function.call(interpreter, Collections.emptyList());
+    } catch (RuntimeError error) {
+      failure = error;
+      return null;
+    }
+  }
+
+  /**
+   * Waits for the task to finish.
+   *
+   * @return what the function returned
+   * @throws RuntimeError the error that ended the task, if one did
+   */
+  Object await() {
+    Object value = join();
+    if (failure != null)
+      throw failure;
+    return value;
+  }
+
+  /**
+   * @return a thread of its own for a body that spends its time parked, which
+   *         is virtual where the JVM has virtual threads
+   */
+  static Thread newThread(Runnable body, String name) {
+    if (virtualThreads != null)
+      return virtualThreads.newThread(body);
+
+    Thread thread = new Thread(body, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  private static ThreadFactory virtualThreadFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+      return (ThreadFactory) factory.invoke(builder);
+    } catch (ReflectiveOperationException error) {
+      return null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "<task>";
+  }
+}
@@ -0,0 +1,106 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The value behind the writer native: a file that writeLine appends to through
+ * its own {@link OutputBuffer}, so lines collect on the heap in one fixed-size
+ * buffer and reach the channel in large writes. <br />
+ * <br />
+ *
+ * Writers that a script leaves open are closed by {@link #closeAll} when its
+ * run ends, so their last lines are not lost. A writer belongs to the globals
+ * of the run that opened it, so a run does not close the writers of another.
+ */
+final class LoxWriter {
+  private static final Set<LoxWriter> open = Collections.synchronizedSet(new LinkedHashSet<>());
+
+  private final Environment owner;
+  private final Path path;
+  private final FileChannel channel;
+  private final OutputBuffer buffer;
+  private boolean closed = false;
+
+  private LoxWriter(Environment owner, Path path, FileChannel channel) {
+    this.owner = owner;
+    this.path = path;
+    this.channel = channel;
+    this.buffer = new OutputBuffer(channel, Charset.defaultCharset());
+  }
+
+  /**
+   * @param owner the globals of the run opening the file
+   * @return a writer to the file, which is created or emptied
+   */
+  static LoxWriter open(Environment owner, Path path) {
+    try {
+      LoxWriter writer = new LoxWriter(owner, path, FileChannel.open(path, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+      open.add(writer);
+      return writer;
+    } catch (IOException error) {
+      throw new NativeError("Can't write file '" + path + "'.");
+    }
+  }
+
+  static LoxWriter cast(Object value, String function) {
+    if (value instanceof LoxWriter)
+      return (LoxWriter) value;
+    throw new NativeError("Expected a writer argument to " + function + "().");
+  }
+
+  /**
+   * Writes a value and a newline, the way a print statement would.
+   */
+  synchronized void writeLine(Object value) {
+    if (closed)
+      throw new NativeError("Can't write to closed file '" + path + "'.");
+    if (Values.isNumber(value)) {
+      buffer.printLine(Values.toDouble(value));
+    } else {
+      buffer.printLine(Interpreter.stringify(value));
+    }
+  }
+
+  synchronized void close() {
+    if (closed)
+      return;
+    closed = true;
+    open.remove(this);
+
+    buffer.flush();
+    try {
+      channel.close();
+    } catch (IOException error) {
+      throw new NativeError("Can't write file '" + path + "'.");
+    }
+  }
+
+  /**
+   * Closes the writers that a run left open.
+   *
+   * @param owner the globals of the run
+   */
+  static void closeAll(Environment owner) {
+    LoxWriter[] writers;
+    synchronized (open) {
+      writers = open.toArray(new LoxWriter[0]);
+    }
+    for (LoxWriter writer : writers) {
+      if (writer.owner == owner)
+        writer.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "writer(" + path + ")";
+  }
+}
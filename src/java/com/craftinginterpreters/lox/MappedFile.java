@@ -0,0 +1,307 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The value behind the lines, records and numbers natives: a file that a
+ * for-in loop reads through memory-mapped windows. <br />
+ * <br />
+ *
+ * Every loop opens the file again and maps it {@link #WINDOW} bytes at a
+ * time, starting over at the element that crosses the end of a window, so
+ * files of any size can be read and the heap only ever holds the current
+ * element. Lines and records are decoded into a String when the loop asks for
+ * them, and numbers are parsed straight from the bytes.
+ */
+final class MappedFile implements LoxIterable {
+  private static final int WINDOW = 1 << 28;
+
+  private enum Kind {
+    LINES, RECORDS, NUMBERS
+  }
+
+  private final Path path;
+  private final Kind kind;
+  private final int recordSize;
+
+  private MappedFile(Path path, Kind kind, int recordSize) {
+    this.path = path;
+    this.kind = kind;
+    this.recordSize = recordSize;
+  }
+
+  /**
+   * @return the lines of the file, without their line terminators
+   */
+  static MappedFile lines(Path path) {
+    return new MappedFile(path, Kind.LINES, 0);
+  }
+
+  /**
+   * @return the file cut into strings of a fixed number of bytes, the last of
+   *         which may be shorter
+   */
+  static MappedFile records(Path path, int size) {
+    if (size <= 0 || size > WINDOW)
+      throw new NativeError("Record size must be between 1 and " + WINDOW + ".");
+    return new MappedFile(path, Kind.RECORDS, size);
+  }
+
+  /**
+   * @return the numbers written in the file, separated by anything that is not
+   *         part of a number
+   */
+  static MappedFile numbers(Path path) {
+    return new MappedFile(path, Kind.NUMBERS, 0);
+  }
+
+  @Override
+  public LoxIterator iterator() {
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+    } catch (IOException error) {
+      throw new NativeError("Can't read file '" + path + "'.");
+    }
+
+    switch (kind) {
+    case LINES:
+      return new Lines(channel);
+    case RECORDS:
+      return new Records(channel);
+    default:
+      return new Numbers(channel);
+    }
+  }
+
+  @Override
+  public String toString() {
+    switch (kind) {
+    case LINES:
+      return "lines(" + path + ")";
+    case RECORDS:
+      return "records(" + path + ", " + recordSize + ")";
+    default:
+      return "numbers(" + path + ")";
+    }
+  }
+
+  /**
+   * A position in the file and the window around it.
+   */
+  private abstract class Cursor implements LoxIterator {
+    private final FileChannel channel;
+    final long size;
+    MappedByteBuffer window = null;
+
+    /**
+     * The offset in the file of the first byte of the window.
+     */
+    long base = 0;
+
+    /**
+     * The offset in the file of the next element.
+     */
+    long position = 0;
+
+    private byte[] bytes = new byte[256];
+
+    Cursor(FileChannel channel) {
+      this.channel = channel;
+      try {
+        this.size = channel.size();
+      } catch (IOException error) {
+        close();
+        throw new NativeError("Can't read file '" + path + "'.");
+      }
+    }
+
+    /**
+     * Maps the window so that it starts at an offset.
+     */
+    void map(long offset) {
+      try {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW, size - offset));
+        base = offset;
+      } catch (IOException error) {
+        throw new NativeError("Can't read file '" + path + "'.");
+      }
+    }
+
+    /**
+     * Makes sure the window holds the bytes from {@code start} up to
+     * {@code end}, which must not be more than {@link #WINDOW} apart.
+     *
+     * @return the index of {@code start} in the window
+     */
+    int reach(long start, long end) {
+      if (window == null || start < base || end > base + window.limit())
+        map(start);
+      return (int) (start - base);
+    }
+
+    /**
+     * @param index  the index of the first byte in the window
+     * @param length the number of bytes
+     * @return the bytes decoded as a String
+     */
+    String decode(int index, int length, Charset charset) {
+      if (length > bytes.length)
+        bytes = new byte[Math.max(length, bytes.length * 2)];
+      window.get(index, bytes, 0, length);
+      return new String(bytes, 0, length, charset);
+    }
+
+    @Override
+    public void close() {
+      try {
+        channel.close();
+      } catch (IOException error) {
+        // Nothing was written, so nothing can be lost.
+      }
+    }
+  }
+
+  private final class Lines extends Cursor {
+    Lines(FileChannel channel) {
+      super(channel);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return position < size;
+    }
+
+    @Override
+    public Object next() {
+      long start = position;
+      int from = reach(start, start);
+      int limit = window.limit();
+      int end = from;
+      while (true) {
+        while (end < limit && window.get(end) != '\n') {
+          end++;
+        }
+        if (end < limit || base + limit == size)
+          break;
+
+        // The line goes on past the window, so map a window that starts at it.
+        if (from == 0)
+          throw new NativeError("Line is longer than " + WINDOW + " bytes.");
+        map(start);
+        end -= from;
+        from = 0;
+        limit = window.limit();
+      }
+
+      position = base + end + 1;
+      int length = end - from;
+      if (length > 0 && window.get(end - 1) == '\r')
+        length--;
+      return decode(from, length, Charset.defaultCharset());
+    }
+  }
+
+  private final class Records extends Cursor {
+    Records(FileChannel channel) {
+      super(channel);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return position < size;
+    }
+
+    @Override
+    public Object next() {
+      int length = (int) Math.min(recordSize, size - position);
+      int from = reach(position, position + length);
+      position += length;
+      return decode(from, length, Charset.defaultCharset());
+    }
+  }
+
+  private final class Numbers extends Cursor {
+    Numbers(FileChannel channel) {
+      super(channel);
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (position < size) {
+        int index = reach(position, position + 1);
+        byte c = window.get(index);
+        if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.')
+          return true;
+        position++;
+      }
+      return false;
+    }
+
+    @Override
+    public Object next() {
+      long start = position;
+      int from = reach(start, start);
+      int end = from;
+      while (true) {
+        int limit = window.limit();
+        while (end < limit && isNumberByte(window.get(end))) {
+          end++;
+        }
+        if (end < limit || base + limit == size || from == 0)
+          break;
+
+        map(start);
+        end -= from;
+        from = 0;
+      }
+      position = base + end;
+
+      Object value = parseInteger(from, end);
+      if (value != null)
+        return value;
+
+      String text = decode(from, end - from, StandardCharsets.ISO_8859_1);
+      try {
+        return Values.number(Double.parseDouble(text));
+      } catch (NumberFormatException error) {
+        throw new NativeError("Invalid number '" + text + "'.");
+      }
+    }
+
+    /**
+     * Parses the common case of a plain integer without going through a String.
+     *
+     * @return the integer, or null if the bytes are anything else
+     */
+    private Object parseInteger(int from, int end) {
+      int i = from;
+      boolean negative = window.get(i) == '-';
+      if (negative || window.get(i) == '+')
+        i++;
+      if (i == end || end - i > 15)
+        return null;
+
+      long value = 0;
+      for (; i < end; i++) {
+        byte c = window.get(i);
+        if (c < '0' || c > '9')
+          return null;
+        value = value * 10 + (c - '0');
+      }
+      if (negative)
+        return value == 0 ? Values.number(-0.0) : Values.number(-value);
+      return Values.number(value);
+    }
+  }
+
+  private static boolean isNumberByte(byte c) {
+    return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+  }
+}
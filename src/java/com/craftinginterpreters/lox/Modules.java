@@ -0,0 +1,102 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The modules that the scripts of a {@link LoxEngine} import, compiled once
+ * and shared by every run. <br />
+ * <br />
+ *
+ * A module is cached by the canonical path of its file, so two paths to the
+ * same file share it, and compiled again once the file was modified since. A
+ * compiled module never changes, like a {@link CompiledScript}, and every run
+ * that imports it gets a {@link LoxModule} of its own.
+ */
+final class Modules {
+  /**
+   * A module as its file was when it was compiled.
+   */
+  static final class Module {
+    final Path path;
+    final FileTime modified;
+    final CompiledScript script;
+
+    private Module(Path path, FileTime modified, CompiledScript script) {
+      this.path = path;
+      this.modified = modified;
+      this.script = script;
+    }
+  }
+
+  /**
+   * The compile errors of a module, which stop the run that imports it as
+   * errors in its own code would have.
+   */
+  static final class CompileError extends RuntimeError {
+    private static final long serialVersionUID = 1L;
+
+    final String module;
+    final List<String> errors;
+
+    private CompileError(Token path, List<String> errors) {
+      super(path, "Can't compile module '" + path.literal + "'.");
+      this.module = (String) path.literal;
+      this.errors = errors;
+    }
+  }
+
+  private final LoxEngine engine;
+  private final Map<Path, Module> compiled = new ConcurrentHashMap<>();
+
+  Modules(LoxEngine engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * @param stmt     the import
+   * @param importer the globals of the code with the import, which its path is
+   *                 relative to
+   * @return the compiled module, compiling the file unless it is cached and
+   *         unchanged
+   * @throws RuntimeError  if the file can't be read
+   * @throws CompileError if the file has compile errors
+   */
+  Module load(Stmt.Import stmt, Globals importer) {
+    String name = (String) stmt.path.literal;
+    Path path;
+    FileTime modified;
+    try {
+      path = importer.resolve(name).toRealPath();
+      modified = Files.getLastModifiedTime(path);
+    } catch (IOException | InvalidPathException error) {
+      throw new RuntimeError(stmt.path, "Can't read module '" + name + "'.");
+    }
+
+    Module module = compiled.get(path);
+    if (module != null && module.modified.equals(modified))
+      return module;
+
+    String source;
+    try {
+      source = Files.readString(path, Charset.defaultCharset());
+    } catch (IOException error) {
+      throw new RuntimeError(stmt.path, "Can't read module '" + name + "'.");
+    }
+
+    CompiledScript script = engine.compile(source, path);
+    if (script.hasErrors())
+      throw new CompileError(stmt.path, script.errors());
+
+    module = new Module(path, modified, script);
+    compiled.put(path, module);
+    return module;
+  }
+}
@@ -0,0 +1,14 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * An error raised by native code, which does not know which token it was
+ * called from. The interpreter turns it into a {@link RuntimeError} at the call
+ * or subscript that caused it.
+ */
+class NativeError extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  NativeError(String message) {
+    super(message, null, false, false);
+  }
+}
@@ -0,0 +1,74 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/**
+ * A function implemented in Java, for the globals the interpreter defines.
+ */
+class NativeFunction implements LoxCallable {
+  interface Body {
+    Object call(List<Object> arguments);
+  }
+
+  /**
+   * The body of a native that runs Lox code, which needs the interpreter of
+   * the caller.
+   */
+  interface Callback {
+    Object call(Interpreter interpreter, List<Object> arguments);
+  }
+
+  private final int arity;
+  private final Callback body;
+
+  NativeFunction(int arity, Body body) {
+    this(arity, (interpreter, arguments) -> body.call(arguments));
+  }
+
+  NativeFunction(int arity, Callback body) {
+    this.arity = arity;
+    this.body = body;
+  }
+
+  @Override
+  public int arity() {
+    return arity;
+  }
+
+  @Override
+  public Object call(Interpreter interpreter, List<Object> arguments) {
+    return body.call(interpreter, arguments);
+  }
+
+  @Override
+  public String toString() {
+    return "<native fn>";
+  }
+
+  /**
+   * @param value    an argument
+   * @param function the native, for the error message
+   * @return the argument as an int
+   * @throws NativeError if it is not an integer that fits
+   */
+  static int integer(Object value, String function) {
+    if (value instanceof Long) {
+      long integer = (long) value;
+      if (integer >= Integer.MIN_VALUE && integer <= Integer.MAX_VALUE)
+        return (int) integer;
+    }
+    throw new NativeError("Expected an integer argument to " + function + "().");
+  }
+
+  /**
+   * @param value    an argument
+   * @param function the native, for the error message
+   * @return the argument as a double
+   * @throws NativeError if it is not a number
+   */
+  static double number(Object value, String function) {
+    if (Values.isNumber(value))
+      return Values.toDouble(value);
+    throw new NativeError("Expected a number argument to " + function + "().");
+  }
+}
@@ -0,0 +1,645 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds loops that the interpreter can run faster and tells it about them.
+ * <br />
+ * <br />
+ *
+ * Counted loops: {@link Parser#forStatement()} lowers
+ * <code>for (var i = 0; i &lt; n; i = i + 1) body</code> into a block with the
+ * variable and a while loop whose body is another block holding the original
+ * body and the increment. When the bound is loop-invariant, the step is a
+ * constant and nothing else assigns the counter, the interpreter keeps the
+ * counter in a primitive double instead of going through the environment.
+ * <br />
+ * <br />
+ *
+ * Loop-invariant code motion: a pure expression inside a loop whose variables
+ * the loop never assigns has the same value in every iteration. Such an
+ * expression gets a slot in {@link Expr#hoisted}. The interpreter evaluates it
+ * the first time the loop needs it and reuses that value until the loop ends.
+ * Evaluating on first use rather than before the loop keeps runtime errors
+ * where they would have happened.
+ * <br />
+ * <br />
+ *
+ * One optimizer lives as long as its {@link Compilation}, because it remembers every
+ * name that any function assigns. A call to such a function can change that
+ * variable, so the optimizer never treats it as loop-invariant.
+ */
+class Optimizer implements Stmt.Visitor<Void> {
+  private final Resolution resolution;
+  private final Set<String> assignedInFunctions = new HashSet<>();
+  private boolean hoisting = true;
+
+  Optimizer(Resolution resolution) {
+    this.resolution = resolution;
+  }
+
+  /**
+   * @return the names that functions compiled so far assign, which a
+   *         {@link Snapshot} keeps for the code compiled after it
+   */
+  Set<String> assignedInFunctions() {
+    return assignedInFunctions;
+  }
+
+  /**
+   * Turns off loop-invariant code motion.
+   */
+  void disableHoisting() {
+    hoisting = false;
+  }
+
+  /**
+   * What the optimizer found out about one while loop.
+   */
+  static class Loop {
+    CountedLoop counted = null;
+
+    /**
+     * How many expressions of the loop are hoisted.
+     */
+    int hoisted = 0;
+  }
+
+  /**
+   * Loop facts about the counter of a counted loop.
+   */
+  static class CountedLoop {
+    final Token counter;
+    final TokenType comparison;
+    final Expr bound;
+    final double step;
+    final Stmt body;
+
+    /**
+     * Whether the body may read the counter, in which case it has to be written
+     * to the environment before every iteration.
+     */
+    final boolean observed;
+
+    CountedLoop(Token counter, TokenType comparison, Expr bound, double step, Stmt body, boolean observed) {
+      this.counter = counter;
+      this.comparison = comparison;
+      this.bound = bound;
+      this.step = step;
+      this.body = body;
+      this.observed = observed;
+    }
+  }
+
+  void optimize(List<Stmt> statements) {
+    Effects program = new Effects();
+    program.scan(statements);
+    assignedInFunctions.addAll(program.assignedInFunctions);
+
+    optimizeAll(statements);
+  }
+
+  private void optimize(Stmt stmt) {
+    if (stmt != null)
+      stmt.accept(this);
+  }
+
+  private void optimizeAll(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      optimize(statement);
+    }
+  }
+
+  /**
+   * Recognizes the block produced for
+   * <code>for (var i = start; i &lt; bound; i = i + step) body</code>.
+   */
+  private void countedLoop(Stmt.Block block) {
+    if (block.statements.size() != 2)
+      return;
+    if (!(block.statements.get(0) instanceof Stmt.Var) || !(block.statements.get(1) instanceof Stmt.While))
+      return;
+
+    Token counter = ((Stmt.Var) block.statements.get(0)).name;
+    Stmt.While loop = (Stmt.While) block.statements.get(1);
+
+    // i < bound
+    if (!(loop.condition instanceof Expr.Binary))
+      return;
+    Expr.Binary condition = (Expr.Binary) loop.condition;
+    switch (condition.operator.type) {
+    case LESS:
+    case LESS_EQUAL:
+    case GREATER:
+    case GREATER_EQUAL:
+      break;
+    default:
+      return;
+    }
+    if (!isVariable(condition.left, counter.lexeme))
+      return;
+
+    // { body; i = i + step; }
+    if (!(loop.body instanceof Stmt.Block))
+      return;
+    List<Stmt> statements = ((Stmt.Block) loop.body).statements;
+    if (statements.size() != 2 || !(statements.get(1) instanceof Stmt.Expression))
+      return;
+    Stmt body = statements.get(0);
+    Expr increment = ((Stmt.Expression) statements.get(1)).expression;
+    if (!(increment instanceof Expr.Assign) || !((Expr.Assign) increment).name.lexeme.equals(counter.lexeme))
+      return;
+    if (!(((Expr.Assign) increment).value instanceof Expr.Binary))
+      return;
+    Expr.Binary next = (Expr.Binary) ((Expr.Assign) increment).value;
+    if (!isVariable(next.left, counter.lexeme) || !(next.right instanceof Expr.Literal))
+      return;
+    Object step = ((Expr.Literal) next.right).value;
+    if (!Values.isNumber(step) || Values.toDouble(step) == 0)
+      return;
+    if (next.operator.type != TokenType.PLUS && next.operator.type != TokenType.MINUS)
+      return;
+
+    Effects effects = new Effects();
+    effects.scan(body);
+    if (effects.assigned.contains(counter.lexeme) || effects.opaque)
+      return;
+    boolean observed = effects.read.contains(counter.lexeme);
+
+    effects.scan(loop.condition);
+    effects.scan(increment);
+    if (!isInvariant(condition.right, effects))
+      return;
+
+    double delta = next.operator.type == TokenType.PLUS ? Values.toDouble(step) : -Values.toDouble(step);
+    loop(loop).counted = new CountedLoop(counter, condition.operator.type, condition.right, delta, body, observed);
+  }
+
+  private Loop loop(Stmt.While stmt) {
+    Loop loop = resolution.loop(stmt);
+    if (loop == null) {
+      loop = new Loop();
+      resolution.loop(stmt, loop);
+    }
+    return loop;
+  }
+
+  /**
+   * Gives every maximal invariant expression of the loop a slot. Expressions in
+   * nested loops belong to those loops, and expressions in nested functions run
+   * in other calls, so both are left alone.
+   */
+  private void hoist(Stmt.While stmt) {
+    Effects effects = new Effects();
+    effects.scan(stmt.condition);
+    effects.scan(stmt.body);
+    if (effects.opaque)
+      return;
+
+    List<Expr> expressions = new ArrayList<>();
+    expressions.add(stmt.condition);
+    collect(stmt.body, expressions);
+
+    int slots = 0;
+    for (Expr expr : expressions) {
+      slots = hoist(expr, effects, slots);
+    }
+    if (slots > 0)
+      loop(stmt).hoisted = slots;
+  }
+
+  private int hoist(Expr expr, Effects effects, int slots) {
+    if (isComputation(expr) && isInvariant(expr, effects)) {
+      expr.hoisted = slots;
+      return slots + 1;
+    }
+
+    if (expr instanceof Expr.Assign) {
+      slots = hoist(((Expr.Assign) expr).value, effects, slots);
+    } else if (expr instanceof Expr.Binary) {
+      slots = hoist(((Expr.Binary) expr).left, effects, slots);
+      slots = hoist(((Expr.Binary) expr).right, effects, slots);
+    } else if (expr instanceof Expr.Call) {
+      slots = hoist(((Expr.Call) expr).callee, effects, slots);
+      for (Expr argument : ((Expr.Call) expr).arguments) {
+        slots = hoist(argument, effects, slots);
+      }
+    } else if (expr instanceof Expr.Get) {
+      slots = hoist(((Expr.Get) expr).object, effects, slots);
+    } else if (expr instanceof Expr.Grouping) {
+      slots = hoist(((Expr.Grouping) expr).expression, effects, slots);
+    } else if (expr instanceof Expr.Index) {
+      slots = hoist(((Expr.Index) expr).object, effects, slots);
+      slots = hoist(((Expr.Index) expr).index, effects, slots);
+    } else if (expr instanceof Expr.IndexSet) {
+      slots = hoist(((Expr.IndexSet) expr).object, effects, slots);
+      slots = hoist(((Expr.IndexSet) expr).index, effects, slots);
+      slots = hoist(((Expr.IndexSet) expr).value, effects, slots);
+    } else if (expr instanceof Expr.Logical) {
+      slots = hoist(((Expr.Logical) expr).left, effects, slots);
+      slots = hoist(((Expr.Logical) expr).right, effects, slots);
+    } else if (expr instanceof Expr.Set) {
+      slots = hoist(((Expr.Set) expr).object, effects, slots);
+      slots = hoist(((Expr.Set) expr).value, effects, slots);
+    } else if (expr instanceof Expr.Unary) {
+      slots = hoist(((Expr.Unary) expr).right, effects, slots);
+    }
+    return slots;
+  }
+
+  /**
+   * Collects the expressions that belong to a loop body directly.
+   */
+  private static void collect(Stmt stmt, List<Expr> expressions) {
+    if (stmt instanceof Stmt.Block) {
+      for (Stmt statement : ((Stmt.Block) stmt).statements) {
+        collect(statement, expressions);
+      }
+    } else if (stmt instanceof Stmt.Expression) {
+      expressions.add(((Stmt.Expression) stmt).expression);
+    } else if (stmt instanceof Stmt.If) {
+      expressions.add(((Stmt.If) stmt).condition);
+      collect(((Stmt.If) stmt).thenBranch, expressions);
+      if (((Stmt.If) stmt).elseBranch != null)
+        collect(((Stmt.If) stmt).elseBranch, expressions);
+    } else if (stmt instanceof Stmt.Print) {
+      expressions.add(((Stmt.Print) stmt).expression);
+    } else if (stmt instanceof Stmt.Return) {
+      if (((Stmt.Return) stmt).value != null)
+        expressions.add(((Stmt.Return) stmt).value);
+    } else if (stmt instanceof Stmt.Var) {
+      if (((Stmt.Var) stmt).initializer != null)
+        expressions.add(((Stmt.Var) stmt).initializer);
+    }
+  }
+
+  /**
+   * @return whether the expression does enough work to be worth a slot
+   */
+  private static boolean isComputation(Expr expr) {
+    if (expr instanceof Expr.Grouping)
+      return isComputation(((Expr.Grouping) expr).expression);
+    return expr instanceof Expr.Binary || expr instanceof Expr.Unary || expr instanceof Expr.Logical;
+  }
+
+  /**
+   * @param expr    an expression inside a loop
+   * @param effects what the loop does
+   * @return whether the expression has the same value in every iteration
+   */
+  private boolean isInvariant(Expr expr, Effects effects) {
+    if (expr instanceof Expr.Literal)
+      return true;
+    if (expr instanceof Expr.Grouping)
+      return isInvariant(((Expr.Grouping) expr).expression, effects);
+    if (expr instanceof Expr.Unary)
+      return isInvariant(((Expr.Unary) expr).right, effects);
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      return isInvariant(binary.left, effects) && isInvariant(binary.right, effects);
+    }
+    if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical) expr;
+      return isInvariant(logical.left, effects) && isInvariant(logical.right, effects);
+    }
+    if (expr instanceof Expr.Variable) {
+      String name = ((Expr.Variable) expr).name.lexeme;
+      if (effects.assigned.contains(name))
+        return false;
+      // A call can run any function that assigns the variable.
+      if (effects.calls && (!resolution.isLocal(expr) || assignedInFunctions.contains(name)))
+        return false;
+      return true;
+    }
+    return false;
+  }
+
+  private static boolean isVariable(Expr expr, String name) {
+    return expr instanceof Expr.Variable && ((Expr.Variable) expr).name.lexeme.equals(name);
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    countedLoop(stmt);
+    optimizeAll(stmt.statements);
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    for (Stmt.Function method : stmt.methods) {
+      optimize(method);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    return null;
+  }
+
+  @Override
+  public Void visitForInStmt(Stmt.ForIn stmt) {
+    optimize(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    if (stmt.body instanceof LazyBody && !((LazyBody) stmt.body).isParsed())
+      return null;
+    optimizeAll(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    optimize(stmt.thenBranch);
+    optimize(stmt.elseBranch);
+    return null;
+  }
+
+  @Override
+  public Void visitImportStmt(Stmt.Import stmt) {
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    return null;
+  }
+
+  @Override
+  public Void visitYieldStmt(Stmt.Yield stmt) {
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    if (hoisting)
+      hoist(stmt);
+    optimize(stmt.body);
+    return null;
+  }
+
+  /**
+   * Collects which names a piece of code reads and assigns, and whether it
+   * calls anything. The names are not resolved, so every fact is about any
+   * variable with that name.
+   */
+  static class Effects implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    final Set<String> read = new HashSet<>();
+    final Set<String> assigned = new HashSet<>();
+    final Set<String> assignedInFunctions = new HashSet<>();
+    boolean calls = false;
+
+    /**
+     * Set when the code holds a function body that has not been parsed yet.
+     */
+    boolean opaque = false;
+
+    private int functionDepth = 0;
+
+    void scan(List<Stmt> statements) {
+      for (Stmt statement : statements) {
+        scan(statement);
+      }
+    }
+
+    void scan(Stmt stmt) {
+      if (stmt != null)
+        stmt.accept(this);
+    }
+
+    void scan(Expr expr) {
+      expr.accept(this);
+    }
+
+    private void assign(String name) {
+      assigned.add(name);
+      if (functionDepth > 0)
+        assignedInFunctions.add(name);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      scan(stmt.statements);
+      return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+      return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+      assign(stmt.name.lexeme);
+      if (stmt.superclass != null)
+        scan(stmt.superclass);
+
+      for (Stmt.Function method : stmt.methods) {
+        scanFunction(method);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      scan(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitForInStmt(Stmt.ForIn stmt) {
+      // Pulling from a generator runs its body.
+      calls = true;
+      scan(stmt.iterable);
+      assign(stmt.name.lexeme);
+      scan(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      assign(stmt.name.lexeme);
+      scanFunction(stmt);
+      return null;
+    }
+
+    private void scanFunction(Stmt.Function stmt) {
+      if (stmt.body instanceof LazyBody && !((LazyBody) stmt.body).isParsed()) {
+        opaque = true;
+        for (String name : ((LazyBody) stmt.body).assignedNames()) {
+          assigned.add(name);
+          assignedInFunctions.add(name);
+        }
+        return;
+      }
+
+      functionDepth++;
+      scan(stmt.body);
+      functionDepth--;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      scan(stmt.condition);
+      scan(stmt.thenBranch);
+      scan(stmt.elseBranch);
+      return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+      assign(stmt.name.lexeme);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      scan(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      if (stmt.value != null)
+        scan(stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      assign(stmt.name.lexeme);
+      if (stmt.initializer != null)
+        scan(stmt.initializer);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      scan(stmt.condition);
+      scan(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+      // Yielding lets the loop that pulls the values run any code.
+      calls = true;
+      scan(stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      scan(expr.value);
+      assign(expr.name.lexeme);
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      scan(expr.left);
+      scan(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      calls = true;
+      scan(expr.callee);
+      for (Expr argument : expr.arguments) {
+        scan(argument);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+      scan(expr.object);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      scan(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+      scan(expr.object);
+      scan(expr.index);
+      return null;
+    }
+
+    @Override
+    public Void visitIndexSetExpr(Expr.IndexSet expr) {
+      scan(expr.object);
+      scan(expr.index);
+      scan(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      scan(expr.left);
+      scan(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+      scan(expr.object);
+      scan(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      scan(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      read.add(expr.name.lexeme);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Where print statements write to. <br />
+ * <br />
+ *
+ * Output collects in one reusable buffer and only goes to the channel when the
+ * buffer is full or {@link #flush()} is called, which {@link Lox} does before
+ * exiting, before reporting an error and before showing the REPL prompt.
+ * Numbers that hold an integer are written digit by digit straight into the
+ * buffer, without going through a String.
+ */
+class OutputBuffer {
+  private static final int CAPACITY = 1 << 16;
+
+  private final WritableByteChannel channel;
+  private final CharsetEncoder encoder;
+  private final CharBuffer chars = CharBuffer.allocate(CAPACITY);
+  private final ByteBuffer bytes;
+  private final char[] digits = new char[20];
+
+  OutputBuffer(WritableByteChannel channel, Charset charset) {
+    this.channel = channel;
+    this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.bytes = ByteBuffer.allocate((int) (CAPACITY * encoder.maxBytesPerChar()));
+  }
+
+  synchronized void printLine(CharSequence text) {
+    String string = text.toString();
+    int length = string.length();
+    for (int i = 0; i < length;) {
+      if (!chars.hasRemaining())
+        drain();
+      int end = Math.min(length, i + chars.remaining());
+      chars.put(string, i, end);
+      i = end;
+    }
+    newLine();
+  }
+
+  /**
+   * Prints a number the way {@link Interpreter} stringifies it: integers below
+   * ten million without a fraction, everything else like
+   * {@link Double#toString}.
+   *
+   * @param value the number
+   */
+  synchronized void printLine(double value) {
+    long integer = (long) value;
+    if (integer != value || Math.abs(value) >= 1e7) {
+      printLine(Double.toString(value));
+      return;
+    }
+
+    int start = digits.length;
+    long rest = Math.abs(integer);
+    do {
+      digits[--start] = (char) ('0' + rest % 10);
+      rest /= 10;
+    } while (rest != 0);
+    if (value < 0 || (value == 0 && 1 / value < 0))
+      digits[--start] = '-';
+
+    if (chars.remaining() < digits.length - start)
+      drain();
+    chars.put(digits, start, digits.length - start);
+    newLine();
+  }
+
+  synchronized void flush() {
+    drain();
+  }
+
+  private void newLine() {
+    if (!chars.hasRemaining())
+      drain();
+    chars.put('\n');
+  }
+
+  private void drain() {
+    // Anything written to System.out directly has to come out first.
+    System.out.flush();
+
+    chars.flip();
+    try {
+      CoderResult result;
+      do {
+        result = encoder.encode(chars, bytes, false);
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+          channel.write(bytes);
+        }
+        bytes.clear();
+      } while (result.isOverflow());
+    } catch (IOException error) {
+      // Like System.out, give up on output that cannot be written.
+      bytes.clear();
+      chars.position(chars.limit());
+    }
+    chars.compact();
+  }
+}
@@ -0,0 +1,129 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The parallelMap and parallelReduce natives: a function applied to every
+ * element of an array on all the workers of {@link ForkJoinPool#commonPool()}.
+ * <br />
+ * <br />
+ *
+ * The array is split in halves until there are a few pieces for every worker,
+ * and each piece calls the function in an {@link Interpreter#fork} of its own.
+ * The calling thread works on pieces too. The pieces only read the array, and
+ * mapped values are collected in a Java array that becomes a Lox array once
+ * every piece is done. <br />
+ * <br />
+ *
+ * A function that assigns a variable declared outside it would race with
+ * itself, so it is refused, see {@link Resolution#assignsOuter}. So is every
+ * call the pieces make to such a function, however deep, since the function
+ * given only decides what it calls as it runs. A closure that a piece makes
+ * and then calls is refused if it assigns a variable of the piece, although
+ * that would be safe. Reducing
+ * combines neighbouring pieces in an order that depends on the split, so the
+ * function has to be associative.
+ */
+@SuppressWarnings("serial") // Pieces hold interpreters and are never serialized.
+final class Parallel extends RecursiveTask<Object> {
+  private final Interpreter interpreter;
+  private final LoxCallable function;
+  private final LoxArray array;
+  private final int from;
+  private final int to;
+  private final int threshold;
+
+  /**
+   * Where mapped values go, or null when reducing.
+   */
+  private final Object[] results;
+
+  private Parallel(Interpreter interpreter, LoxCallable function, LoxArray array, int from, int to, int threshold,
+      Object[] results) {
+    this.interpreter = interpreter;
+    this.function = function;
+    this.array = array;
+    this.from = from;
+    this.to = to;
+    this.threshold = threshold;
+    this.results = results;
+  }
+
+  /**
+   * @return a new array with the function applied to every element
+   */
+  static LoxArray map(Interpreter interpreter, Object function, Object data) {
+    LoxCallable callable = callable(interpreter, function, 1, "parallelMap");
+    LoxArray array = LoxArray.cast(data, "parallelMap");
+
+    Object[] results = new Object[array.size()];
+    if (results.length > 0)
+      new Parallel(interpreter, callable, array, 0, results.length, threshold(results.length), results).invoke();
+
+    LoxArray result = new LoxArray(0);
+    for (Object value : results) {
+      result.push(value);
+    }
+    return result;
+  }
+
+  /**
+   * @return the initial value combined with every element by the function
+   */
+  static Object reduce(Interpreter interpreter, Object function, Object initial, Object data) {
+    LoxCallable callable = callable(interpreter, function, 2, "parallelReduce");
+    LoxArray array = LoxArray.cast(data, "parallelReduce");
+    if (array.size() == 0)
+      return initial;
+
+    Object total = new Parallel(interpreter, callable, array, 0, array.size(), threshold(array.size()), null).invoke();
+    return callable.call(interpreter, Arrays.asList(initial, total));
+  }
+
+  private static LoxCallable callable(Interpreter interpreter, Object function, int arity, String name) {
+    if (!(function instanceof LoxCallable) || ((LoxCallable) function).arity() != arity)
+      throw new NativeError("Expected a function of " + arity + " argument" + (arity == 1 ? "" : "s") + " to " + name
+          + "().");
+
+    LoxCallable callable = (LoxCallable) function;
+    if (interpreter.assignsOuter(callable))
+      throw new NativeError("Can't run " + callable + " in parallel, since it assigns variables declared outside it.");
+    return callable;
+  }
+
+  private static int threshold(int size) {
+    return Math.max(1, size / (4 * (ForkJoinPool.getCommonPoolParallelism() + 1)));
+  }
+
+  @Override
+  protected Object compute() {
+    if (to - from > threshold) {
+      int middle = (from + to) >>> 1;
+      Parallel left = new Parallel(interpreter, function, array, from, middle, threshold, results);
+      Parallel right = new Parallel(interpreter, function, array, middle, to, threshold, results);
+      left.fork();
+      Object rightValue = right.compute();
+      Object leftValue = left.join();
+      if (results != null)
+        return null;
+      return function.call(interpreter.forkParallel(), Arrays.asList(leftValue, rightValue));
+    }
+
+    Interpreter worker = interpreter.forkParallel();
+    if (results != null) {
+      for (int i = from; i < to; i++) {
+        results[i] = function.call(worker, Collections.singletonList(array.get(Values.number(i))));
+      }
+      return null;
+    }
+
+    Object total = array.get(Values.number(from));
+    for (int i = from + 1; i < to; i++) {
+      total = function.call(worker, Arrays.asList(total, array.get(Values.number(i))));
+    }
+    return total;
+  }
+}
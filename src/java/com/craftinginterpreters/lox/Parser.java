@@ -14,8 +14,44 @@ class Parser {
   private int current = 0;
   private int loopLevel = 0;
 
-  Parser(List<Token> tokens) {
+  /**
+   * Set when the parser also resolves variables as it builds the tree, so that
+   * {@link Resolver} does not have to walk the whole program a second time.
+   */
+  private final Compilation compilation;
+  private final Scopes scopes;
+  private Resolver.FunctionType currentFunction = Resolver.FunctionType.NONE;
+  private Resolver.ClassType currentClass = Resolver.ClassType.NONE;
+
+  /**
+   * Whether the function being parsed has yielded so far, which makes it a
+   * generator.
+   */
+  private boolean yielded = false;
+
+  /**
+   * Only brace-match function bodies and leave them to a {@link LazyBody}.
+   */
+  private final boolean lazy;
+
+  /**
+   * Whether to check the context of skipped bodies, which a body parsed by
+   * {@link #functionBody} leaves to the check of its own declaration, that
+   * covered the functions nested in it.
+   */
+  private boolean checkContext = true;
+
+  /**
+   * Whether the body parsed by {@link #functionBody} assigns a variable
+   * declared outside it, which is only known when the parser resolves.
+   */
+  private boolean assignsOuter = false;
+
+  Parser(List<Token> tokens, Compilation compilation) {
     this.tokens = tokens;
+    this.compilation = compilation;
+    this.scopes = compilation.engine.fusedResolve ? new Scopes(compilation.resolution) : null;
+    this.lazy = compilation.lazyFunctions();
   }
 
   List<Stmt> parse() {
@@ -27,16 +63,60 @@ class Parser {
     return statements;
   }
 
+  /**
+   * Parses the body of a function that was skipped in lazy mode, starting right
+   * after its opening brace.
+   *
+   * @param start     index of the first token of the body
+   * @param captured the names the function captured where it was declared
+   * @param params   the function parameters
+   * @param type     whether the function is a method or initializer
+   * @return the statements of the body
+   */
+  List<Stmt> functionBody(int start, String[] captured, List<Token> params, Resolver.FunctionType type) {
+    current = start;
+    checkContext = false;
+    if (scopes != null)
+      scopes.restore(captured);
+
+    beginScope();
+    if (scopes != null)
+      scopes.beginFunction();
+    currentFunction = type;
+    declareThis(type);
+    for (Token param : params) {
+      declare(param);
+      define(param);
+    }
+
+    List<Stmt> body = block();
+    if (scopes != null)
+      assignsOuter = scopes.endFunction().assignsOuter;
+    return body;
+  }
+
+  /**
+   * @return whether the last {@link #functionBody} assigns a variable declared
+   *         outside it
+   */
+  boolean assignsOuter() {
+    return assignsOuter;
+  }
+
   private Expr expression() {
     return assignment();
   }
 
   private Stmt declaration() {
     try {
+      if (match(CLASS))
+        return classDeclaration();
       if (match(FUN))
         return function("function");
       if (match(VAR))
         return varDeclaration();
+      if (match(IMPORT))
+        return importDeclaration();
 
       return statement();
     } catch (ParseError error) {
@@ -59,10 +139,18 @@ class Parser {
       return returnStatement();
     if (match(WHILE))
       return whileStatement();
+    if (match(YIELD))
+      return yieldStatement();
     if (match(BREAK))
       return breakStatement();
-    if (match(LEFT_BRACE))
-      return new Stmt.Block(block());
+    if (match(LEFT_BRACE)) {
+      beginScope();
+      try {
+        return new Stmt.Block(block());
+      } finally {
+        endScope();
+      }
+    }
 
     return expressionStatement();
   }
@@ -73,18 +161,28 @@ class Parser {
    */
 
   private Stmt forStatement() {
+    Token keyword = previous();
+    boolean initializerScope = false;
     try {
       loopLevel += 1;
 
       consume(LEFT_PAREN, "Expect '(' after 'for'.");
+      if (isForIn())
+        return forInStatement(keyword);
 
+      // The desugared loop wraps an initializer and the loop in a block, and the
+      // body and increment in another one, so open the same scopes here.
       Stmt initializer;
       if (match(SEMICOLON)) {
         initializer = null;
-      } else if (match(VAR)) {
-        initializer = varDeclaration();
       } else {
-        initializer = expressionStatement();
+        beginScope();
+        initializerScope = true;
+        if (match(VAR)) {
+          initializer = varDeclaration();
+        } else {
+          initializer = expressionStatement();
+        }
       }
 
       Expr condition = null;
@@ -95,11 +193,26 @@ class Parser {
 
       Expr increment = null;
       if (!check(RIGHT_PAREN)) {
-        increment = expression();
+        beginScope();
+        try {
+          increment = expression();
+        } finally {
+          endScope();
+        }
       }
       consume(RIGHT_PAREN, "Expect ')' after for clauses.");
 
-      Stmt body = statement();
+      Stmt body;
+      if (increment != null) {
+        beginScope();
+        try {
+          body = statement();
+        } finally {
+          endScope();
+        }
+      } else {
+        body = statement();
+      }
 
       if (increment != null) {
         body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
@@ -116,6 +229,35 @@ class Parser {
 
     } finally {
       loopLevel -= 1;
+      if (initializerScope)
+        endScope();
+    }
+  }
+
+  private boolean isForIn() {
+    int name = check(VAR) ? current + 1 : current;
+    return tokens.get(name).type == IDENTIFIER && tokens.get(name + 1).type == IN;
+  }
+
+  /**
+   * for ( "var"? IDENTIFIER "in" expression ) statement <br />
+   *
+   * Every element gets a new variable, in a scope of its own around the body.
+   */
+  private Stmt forInStatement(Token keyword) {
+    match(VAR);
+    Token name = consume(IDENTIFIER, "Expect variable name.");
+    consume(IN, "Expect 'in' after loop variable.");
+    Expr iterable = expression();
+    consume(RIGHT_PAREN, "Expect ')' after for clauses.");
+
+    beginScope();
+    try {
+      declare(name);
+      define(name);
+      return new Stmt.ForIn(keyword, name, iterable, statement());
+    } finally {
+      endScope();
     }
   }
 
@@ -141,8 +283,15 @@ class Parser {
 
   private Stmt returnStatement() {
     Token keyword = previous();
+    if (scopes != null && currentFunction == Resolver.FunctionType.NONE) {
+      error(keyword, "Can't return from top-level code.");
+    }
+
     Expr value = null;
     if (!check(SEMICOLON)) {
+      if (scopes != null && currentFunction == Resolver.FunctionType.INITIALIZER) {
+        error(keyword, "Can't return a value from an initializer.");
+      }
       value = expression();
     }
 
@@ -150,18 +299,69 @@ class Parser {
     return new Stmt.Return(keyword, value);
   }
 
+  private Stmt yieldStatement() {
+    Token keyword = previous();
+    if (scopes != null && currentFunction == Resolver.FunctionType.NONE) {
+      error(keyword, "Can't yield from top-level code.");
+    }
+    if (scopes != null && currentFunction == Resolver.FunctionType.INITIALIZER) {
+      error(keyword, "Can't yield from an initializer.");
+    }
+    yielded = true;
+
+    Expr value = expression();
+    consume(SEMICOLON, "Expect ';' after yield value.");
+    return new Stmt.Yield(keyword, value);
+  }
+
   private Stmt varDeclaration() {
     Token name = consume(IDENTIFIER, "Expect variable name.");
+    declare(name);
 
     Expr initializer = null;
     if (match(EQUAL)) {
       initializer = expression();
     }
+    define(name);
 
     consume(SEMICOLON, "Expect ';' after variable declaration.");
     return new Stmt.Var(name, initializer);
   }
 
+  /**
+   * import STRING ( "as" IDENTIFIER )? ; <br />
+   *
+   * Without a name, the module is named after its file, like math for
+   * "lib/math.lox". The word as is only special right after the path.
+   */
+  private Stmt importDeclaration() {
+    Token keyword = previous();
+    Token path = consume(STRING, "Expect module path after 'import'.");
+
+    Token name;
+    if (check(IDENTIFIER) && peek().lexeme.equals("as")) {
+      advance();
+      name = consume(IDENTIFIER, "Expect module name after 'as'.");
+    } else {
+      name = moduleName(path);
+    }
+    declare(name);
+    define(name);
+
+    consume(SEMICOLON, "Expect ';' after import.");
+    return new Stmt.Import(keyword, path, name);
+  }
+
+  private Token moduleName(Token path) {
+    String name = path.literal.toString();
+    name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+    if (name.indexOf('.') >= 0)
+      name = name.substring(0, name.indexOf('.'));
+    if (!name.matches("[A-Za-z_][A-Za-z_0-9]*") || Scanner.isKeyword(name))
+      throw error(path, "Expect 'as' and a name for this module.");
+    return new Token(IDENTIFIER, name, null, path.line);
+  }
+
   private Stmt whileStatement() {
     try {
       loopLevel += 1;
@@ -194,24 +394,111 @@ class Parser {
     return new Stmt.Expression(expr);
   }
 
+  private Stmt classDeclaration() {
+    Token name = consume(IDENTIFIER, "Expect class name.");
+    if (scopes != null)
+      scopes.declare(name, true);
+    define(name);
+
+    Expr.Variable superclass = null;
+    if (match(LESS)) {
+      consume(IDENTIFIER, "Expect superclass name.");
+      superclass = new Expr.Variable(previous());
+      if (scopes != null && superclass.name.lexeme.equals(name.lexeme)) {
+        error(superclass.name, "A class can't inherit from itself.");
+      }
+      resolveLocal(superclass, superclass.name, false);
+
+      beginScope();
+      if (scopes != null)
+        scopes.declareImplicit("super");
+    }
+
+    Resolver.ClassType enclosingClass = currentClass;
+    currentClass = superclass != null ? Resolver.ClassType.SUBCLASS : Resolver.ClassType.CLASS;
+    try {
+      consume(LEFT_BRACE, "Expect '{' before class body.");
+
+      List<Stmt.Function> methods = new ArrayList<>();
+      while (!check(RIGHT_BRACE) && !isAtEnd()) {
+        methods.add(function("method"));
+      }
+
+      consume(RIGHT_BRACE, "Expect '}' after class body.");
+      return new Stmt.Class(name, superclass, methods);
+    } finally {
+      currentClass = enclosingClass;
+      if (superclass != null)
+        endScope();
+    }
+  }
+
   private Stmt.Function function(String kind) {
     Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
-    consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
-    List<Token> parameters = new ArrayList<>();
-    if (!check(RIGHT_PAREN)) {
-      do {
-        if (parameters.size() >= 255) {
-          error(peek(), "Can't have more than 255 parameters.");
-        }
-
-        parameters.add(consume(IDENTIFIER, "Expect parameter name."));
-      } while (match(COMMA));
+    Resolver.FunctionType type = Resolver.FunctionType.FUNCTION;
+    if (kind.equals("method")) {
+      // Methods are properties of the class, not variables.
+      type = name.lexeme.equals("init") ? Resolver.FunctionType.INITIALIZER : Resolver.FunctionType.METHOD;
+    } else {
+      if (scopes != null)
+        scopes.declare(name, true);
+      define(name);
     }
-    consume(RIGHT_PAREN, "Expect ')' after parameters.");
 
-    consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-    List<Stmt> body = block();
-    return new Stmt.Function(name, parameters, body);
+    beginScope();
+    if (scopes != null)
+      scopes.beginFunction();
+    declareThis(type);
+    Resolver.FunctionType enclosingFunction = currentFunction;
+    boolean enclosingYielded = yielded;
+    currentFunction = type;
+    yielded = false;
+    Stmt.Function function = null;
+    try {
+      consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
+      List<Token> parameters = new ArrayList<>();
+      if (!check(RIGHT_PAREN)) {
+        do {
+          if (parameters.size() >= 255) {
+            error(peek(), "Can't have more than 255 parameters.");
+          }
+
+          Token parameter = consume(IDENTIFIER, "Expect parameter name.");
+          declare(parameter);
+          define(parameter);
+          parameters.add(parameter);
+        } while (match(COMMA));
+      }
+      consume(RIGHT_PAREN, "Expect ')' after parameters.");
+
+      consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+      if (lazy) {
+        int start = current;
+        skipBody();
+        LazyBody body = new LazyBody(tokens, start, current - 1, name, parameters, type);
+        if (checkContext)
+          body.checkContext(compilation.reporter, currentClass);
+        if (scopes != null)
+          body.resolveNames(scopes);
+        function = new Stmt.Function(name, parameters, body, body.yields());
+      } else {
+        List<Stmt> body = block();
+        function = new Stmt.Function(name, parameters, body, yielded);
+      }
+      return function;
+    } finally {
+      currentFunction = enclosingFunction;
+      yielded = enclosingYielded;
+      if (scopes != null) {
+        Scopes.Captures captures = scopes.endFunction();
+        if (function != null) {
+          compilation.resolution.capture(function, captures);
+          if (function.body instanceof LazyBody)
+            ((LazyBody) function.body).bind(compilation, captures.names);
+        }
+      }
+      endScope();
+    }
   }
 
   /**
@@ -238,6 +525,25 @@ class Parser {
     return statements;
   }
 
+  /**
+   * Skips to just past the brace that closes the current function body.
+   */
+  private void skipBody() {
+    int depth = 1;
+    while (!isAtEnd()) {
+      if (check(LEFT_BRACE)) {
+        depth++;
+      } else if (check(RIGHT_BRACE)) {
+        depth--;
+        if (depth == 0)
+          break;
+      }
+      advance();
+    }
+
+    consume(RIGHT_BRACE, "Expect '}' after block.");
+  }
+
   private Expr assignment() {
     Expr expr = or();
 
@@ -247,7 +553,19 @@ class Parser {
 
       if (expr instanceof Expr.Variable) {
         Token name = ((Expr.Variable) expr).name;
-        return new Expr.Assign(name, value);
+        Expr.Assign assign = new Expr.Assign(name, value);
+        resolveLocal(assign, name, true);
+        return assign;
+      }
+
+      if (expr instanceof Expr.Index) {
+        Expr.Index index = (Expr.Index) expr;
+        return new Expr.IndexSet(index.object, index.bracket, index.index, value);
+      }
+
+      if (expr instanceof Expr.Get) {
+        Expr.Get get = (Expr.Get) expr;
+        return new Expr.Set(get.object, get.name, value, new PropertyCache());
       }
 
       error(equals, "Invalid assignment target.");
@@ -385,6 +703,13 @@ class Parser {
     while (true) {
       if (match(LEFT_PAREN)) {
         expr = finishCall(expr);
+      } else if (match(LEFT_BRACKET)) {
+        Expr index = expression();
+        Token bracket = consume(RIGHT_BRACKET, "Expect ']' after index.");
+        expr = new Expr.Index(expr, bracket, index);
+      } else if (match(DOT)) {
+        Token name = consume(IDENTIFIER, "Expect property name after '.'.");
+        expr = new Expr.Get(expr, name, new PropertyCache());
       } else {
         break;
       }
@@ -405,8 +730,36 @@ class Parser {
       return new Expr.Literal(previous().literal);
     }
 
+    if (match(SUPER)) {
+      Token keyword = previous();
+      consume(DOT, "Expect '.' after 'super'.");
+      Token method = consume(IDENTIFIER, "Expect superclass method name.");
+      Expr.This receiver = new Expr.This(new Token(THIS, "this", null, keyword.line));
+      Expr.Super expr = new Expr.Super(keyword, method, receiver);
+      if (scopes != null) {
+        boolean inMethod = resolveLocal(receiver, receiver.keyword, false);
+        if (!resolveLocal(expr, keyword, false)) {
+          error(keyword, inMethod ? "Can't use 'super' in a class with no superclass."
+              : "Can't use 'super' outside of a class.");
+        }
+      }
+      return expr;
+    }
+
+    if (match(THIS)) {
+      Expr.This expr = new Expr.This(previous());
+      if (scopes != null && !resolveLocal(expr, expr.keyword, false)) {
+        error(expr.keyword, "Can't use 'this' outside of a class.");
+      }
+      return expr;
+    }
+
     if (match(IDENTIFIER)) {
-      return new Expr.Variable(previous());
+      Expr.Variable variable = new Expr.Variable(previous());
+      // An assignment target is resolved once the Expr.Assign is built.
+      if (!check(EQUAL))
+        resolveLocal(variable, variable.name, false);
+      return variable;
     }
 
     if (match(LEFT_PAREN)) {
@@ -418,6 +771,45 @@ class Parser {
     throw error(peek(), "Expect expression.");
   }
 
+  private void beginScope() {
+    if (scopes != null)
+      scopes.begin();
+  }
+
+  private void endScope() {
+    if (scopes != null)
+      scopes.end();
+  }
+
+  private void declare(Token name) {
+    if (scopes != null)
+      scopes.declare(name, false);
+  }
+
+  private void define(Token name) {
+    if (scopes != null)
+      scopes.define(name.lexeme);
+  }
+
+  /**
+   * @return whether the name is a local variable
+   */
+  private boolean resolveLocal(Expr expr, Token name, boolean assignment) {
+    if (scopes == null)
+      return false;
+
+    int depth = scopes.resolve(name.lexeme, assignment);
+    if (depth >= 0) {
+      compilation.resolution.resolve(expr, depth);
+    }
+    return depth >= 0;
+  }
+
+  private void declareThis(Resolver.FunctionType type) {
+    if (scopes != null && (type == Resolver.FunctionType.METHOD || type == Resolver.FunctionType.INITIALIZER))
+      scopes.declareImplicit("this");
+  }
+
   private boolean match(TokenType... types) {
     for (TokenType type : types) {
       if (check(type)) {
@@ -461,7 +853,7 @@ class Parser {
   }
 
   private ParseError error(Token token, String message) {
-    Lox.error(token, message);
+    compilation.reporter.error(token, message);
     return new ParseError();
   }
 
@@ -0,0 +1,104 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * An inline cache for one property access in the tree, held by the
+ * {@link Expr.Get} or {@link Expr.Set} node itself. <br />
+ * <br />
+ *
+ * The first lookup on a {@link Shape} does the full search and remembers what
+ * it found, so the next access to an instance of that shape is an identity
+ * check on the shape and an array load. A node remembers up to
+ * {@link #POLYMORPHIC} shapes, and once it is full every new shape replaces the
+ * oldest one. Each run of a {@link CompiledScript} creates its own classes and
+ * so its own shapes, and a node must not stay stuck with those of earlier
+ * runs. <br />
+ * <br />
+ *
+ * Entries never change once they are in the cache, so a racing lookup sees
+ * either a whole entry or none.
+ */
+final class PropertyCache {
+  private static final int POLYMORPHIC = 4;
+
+  /**
+   * What a property of a shape is.
+   */
+  static final class Entry {
+    final Shape shape;
+
+    /**
+     * The slot of the field, or -1 if the shape has no such field.
+     */
+    final int slot;
+
+    /**
+     * For a get that is not a field, the method, or null if there is none.
+     */
+    final LoxFunction method;
+
+    /**
+     * For a set that adds the field, the shape the instance moves to.
+     */
+    final Shape next;
+
+    private Entry(Shape shape, int slot, LoxFunction method, Shape next) {
+      this.shape = shape;
+      this.slot = slot;
+      this.method = method;
+      this.next = next;
+    }
+  }
+
+  private final Entry[] entries = new Entry[POLYMORPHIC];
+
+  /**
+   * Where the next entry goes. Racing threads may overwrite each other's entry,
+   * which only costs a miss later.
+   */
+  private int next = 0;
+
+  /**
+   * @return what reading the property finds on the shape
+   */
+  Entry get(Shape shape, String name) {
+    Entry entry = find(shape);
+    if (entry != null)
+      return entry;
+
+    int slot = shape.slot(name);
+    LoxFunction method = slot < 0 ? shape.owner.findMethod(name) : null;
+    return add(new Entry(shape, slot, method, null));
+  }
+
+  /**
+   * @return where writing the property goes on the shape: into an existing slot,
+   *         or into a new one along with a move to {@link Entry#next}
+   */
+  Entry set(Shape shape, String name) {
+    Entry entry = find(shape);
+    if (entry != null)
+      return entry;
+
+    int slot = shape.slot(name);
+    if (slot >= 0)
+      return add(new Entry(shape, slot, null, null));
+    return add(new Entry(shape, shape.size(), null, shape.with(name)));
+  }
+
+  private Entry find(Shape shape) {
+    for (Entry entry : entries) {
+      if (entry == null)
+        return null;
+      if (entry.shape == shape)
+        return entry;
+    }
+    return null;
+  }
+
+  private Entry add(Entry entry) {
+    int index = next;
+    entries[index] = entry;
+    next = (index + 1) % POLYMORPHIC;
+    return entry;
+  }
+}
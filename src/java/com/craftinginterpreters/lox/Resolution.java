@@ -0,0 +1,106 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What compiling a program worked out about its variables and loops, which the
+ * {@link Interpreter} looks up as it runs the program. <br />
+ * <br />
+ *
+ * The {@link Resolver}, or the {@link Parser} when it resolves while parsing,
+ * and the {@link Optimizer} fill it in. After that nothing writes to it, so
+ * one resolution serves every interpreter that runs the program, on any
+ * thread. Lazily parsed function bodies are the exception: they add to the
+ * resolution of their program when they are first called, possibly while
+ * tasks on other threads read it, so with lazy functions the maps are
+ * concurrent ones.
+ */
+final class Resolution {
+  private final Map<Expr, Integer> locals;
+  private final Map<Stmt.While, Optimizer.Loop> loops;
+
+  /**
+   * The free variables of every function, and the declarations of the
+   * variables that closures share with their scope, see {@link Scopes}.
+   */
+  private final Map<Stmt.Function, Scopes.Captures> captures;
+  private final Set<Token> boxed;
+
+  /**
+   * @param growing whether the resolution is written to while the program runs
+   */
+  Resolution(boolean growing) {
+    if (growing) {
+      locals = new ConcurrentHashMap<>();
+      loops = new ConcurrentHashMap<>();
+      captures = new ConcurrentHashMap<>();
+      boxed = ConcurrentHashMap.newKeySet();
+    } else {
+      locals = new HashMap<>();
+      loops = new HashMap<>();
+      captures = new HashMap<>();
+      boxed = new HashSet<>();
+    }
+  }
+
+  void resolve(Expr expr, int depth) {
+    locals.put(expr, depth);
+  }
+
+  /**
+   * @return how many environments out the variable of the expression lives, or
+   *         null if it is a global
+   */
+  Integer depth(Expr expr) {
+    return locals.get(expr);
+  }
+
+  boolean isLocal(Expr expr) {
+    return locals.containsKey(expr);
+  }
+
+  void capture(Stmt.Function function, Scopes.Captures captured) {
+    captures.put(function, captured);
+  }
+
+  Scopes.Captures captures(Stmt.Function function) {
+    return captures.get(function);
+  }
+
+  /**
+   * A function that does would race with itself when it runs on several
+   * threads at once. A body that is not parsed yet is parsed first. Inside a
+   * lazily parsed body, a nested function is only scanned for names, so it
+   * counts as assigning outside itself whenever it assigns a captured name.
+   *
+   * @return whether the function assigns a variable declared outside it
+   */
+  boolean assignsOuter(Stmt.Function function) {
+    if (function.body instanceof LazyBody)
+      return ((LazyBody) function.body).assignsOuter();
+    return captures.get(function).assignsOuter;
+  }
+
+  void box(Token declaration) {
+    boxed.add(declaration);
+  }
+
+  /**
+   * @return whether the variable is shared with closures through a cell
+   */
+  boolean isBoxed(Token declaration) {
+    return boxed.contains(declaration);
+  }
+
+  Optimizer.Loop loop(Stmt.While stmt) {
+    return loops.get(stmt);
+  }
+
+  void loop(Stmt.While stmt, Optimizer.Loop loop) {
+    loops.put(stmt, loop);
+  }
+}
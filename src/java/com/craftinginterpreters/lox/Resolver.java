@@ -1,22 +1,29 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-  private final Interpreter interpreter;
-  private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+  private final Compilation compilation;
+  private final Scopes scopes;
   private FunctionType currentFunction = FunctionType.NONE;
   private BreakType currentBreak = BreakType.NONE;
 
-  Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
+  Resolver(Compilation compilation) {
+    this.compilation = compilation;
+    this.scopes = new Scopes(compilation.resolution);
   }
 
-  private enum FunctionType {
-    NONE, FUNCTION
+  enum FunctionType {
+    NONE, FUNCTION, INITIALIZER, METHOD
+  }
+
+  /**
+   * The class a function is declared in, which only the lazy check of
+   * {@link LazyBody#checkContext} needs: the resolver finds this and super
+   * through the scopes.
+   */
+  enum ClassType {
+    NONE, CLASS, SUBCLASS
   }
 
   private enum BreakType {
@@ -29,64 +36,108 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
   }
 
+  /**
+   * Resolves a function body that was parsed lazily, with the variables it
+   * captured where the function was declared as the only enclosing scope.
+   *
+   * @param captured the captured names
+   * @param params   the function parameters
+   * @param body     the parsed body
+   * @param type     what kind of function the body belongs to
+   * @return whether the body assigns a variable declared outside it
+   */
+  boolean resolveBody(String[] captured, List<Token> params, List<Stmt> body, FunctionType type) {
+    scopes.restore(captured);
+    currentFunction = type;
+
+    beginScope();
+    scopes.beginFunction();
+    declareThis(type);
+    for (Token param : params) {
+      declare(param);
+      define(param);
+    }
+    resolve(body);
+    boolean assignsOuter = scopes.endFunction().assignsOuter;
+    endScope();
+    return assignsOuter;
+  }
+
   private void resolveFunction(Stmt.Function function, FunctionType type) {
     FunctionType enclosingFunction = currentFunction;
     currentFunction = type;
 
     beginScope();
+    scopes.beginFunction();
+    declareThis(type);
     for (Token param : function.params) {
       declare(param);
       define(param);
     }
-    resolve(function.body);
+    if (function.body instanceof LazyBody) {
+      // Capture whatever the body might refer to, since it is not parsed yet.
+      ((LazyBody) function.body).resolveNames(scopes);
+    } else {
+      resolve(function.body);
+    }
+    Scopes.Captures captures = scopes.endFunction();
     endScope();
     currentFunction = enclosingFunction;
+
+    compilation.resolution.capture(function, captures);
+    if (function.body instanceof LazyBody) {
+      ((LazyBody) function.body).bind(compilation, captures.names);
+    }
   }
 
-  private void resolveWhile(Stmt.While stmt, BreakType type) {
+  /**
+   * A method gets this in the scope of its parameters, so that a call can
+   * define it next to the arguments.
+   */
+  private void declareThis(FunctionType type) {
+    if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER)
+      scopes.declareImplicit("this");
+  }
+
+  private void resolveLoop(Stmt body, BreakType type) {
     BreakType enclosingBreak = currentBreak;
     currentBreak = type;
 
-    resolve(stmt.body);
+    resolve(body);
 
     currentBreak = enclosingBreak;
   }
 
   private void beginScope() {
-    scopes.push(new HashMap<String, Boolean>());
+    scopes.begin();
   }
 
   private void endScope() {
-    scopes.pop();
+    scopes.end();
   }
 
   private void declare(Token name) {
-    if (scopes.isEmpty())
-      return;
-
-    Map<String, Boolean> scope = scopes.peek();
-
     /*
      * if (scope.containsKey(name.lexeme)) { Lox.error(name, "Already a variable
      * with this name in this scope."); }
      */
 
-    scope.put(name.lexeme, false);
+    scopes.declare(name, false);
   }
 
   private void define(Token name) {
-    if (scopes.isEmpty())
-      return;
-    scopes.peek().put(name.lexeme, true);
+    scopes.define(name.lexeme);
   }
 
-  private void resolveLocal(Expr expr, Token name) {
-    for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(name.lexeme)) {
-        interpreter.resolve(expr, scopes.size() - 1 - i);
-        return;
-      }
+  /**
+   * @return whether the name is a local variable
+   */
+  private boolean resolveLocal(Expr expr, Token name, boolean assignment) {
+    int depth = scopes.resolve(name.lexeme, assignment);
+    if (depth >= 0) {
+      compilation.resolution.resolve(expr, depth);
     }
+    return depth >= 0;
   }
 
   @Override
@@ -100,7 +151,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitBreakStmt(Stmt.Break stmt) {
     if (currentBreak == BreakType.NONE) {
-      Lox.error(stmt.keyword, "Can't break outside outside of loop");
+      compilation.reporter.error(stmt.keyword, "Can't break outside outside of loop");
     }
 
     /*
@@ -111,6 +162,34 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    scopes.declare(stmt.name, true);
+    define(stmt.name);
+
+    if (stmt.superclass != null) {
+      if (stmt.superclass.name.lexeme.equals(stmt.name.lexeme)) {
+        compilation.reporter.error(stmt.superclass.name, "A class can't inherit from itself.");
+      }
+      resolve(stmt.superclass);
+
+      beginScope();
+      scopes.declareImplicit("super");
+    }
+
+    for (Stmt.Function method : stmt.methods) {
+      FunctionType declaration = FunctionType.METHOD;
+      if (method.name.lexeme.equals("init")) {
+        declaration = FunctionType.INITIALIZER;
+      }
+      resolveFunction(method, declaration);
+    }
+
+    if (stmt.superclass != null)
+      endScope();
+    return null;
+  }
+
   @Override
   public Void visitExpressionStmt(Stmt.Expression stmt) {
     resolve(stmt.expression);
@@ -118,9 +197,21 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   }
 
   @Override
-  public Void visitFunctionStmt(Stmt.Function stmt) {
+  public Void visitForInStmt(Stmt.ForIn stmt) {
+    resolve(stmt.iterable);
+
+    beginScope();
     declare(stmt.name);
     define(stmt.name);
+    resolveLoop(stmt.body, BreakType.LOOP);
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    scopes.declare(stmt.name, true);
+    define(stmt.name);
 
     resolveFunction(stmt, FunctionType.FUNCTION);
     return null;
@@ -135,6 +226,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitImportStmt(Stmt.Import stmt) {
+    declare(stmt.name);
+    define(stmt.name);
+    return null;
+  }
+
   @Override
   public Void visitPrintStmt(Stmt.Print stmt) {
     resolve(stmt.expression);
@@ -144,10 +242,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitReturnStmt(Stmt.Return stmt) {
     if (currentFunction == FunctionType.NONE) {
-      Lox.error(stmt.keyword, "Can't return from top-level code.");
+      compilation.reporter.error(stmt.keyword, "Can't return from top-level code.");
     }
 
     if (stmt.value != null) {
+      if (currentFunction == FunctionType.INITIALIZER) {
+        compilation.reporter.error(stmt.keyword, "Can't return a value from an initializer.");
+      }
       resolve(stmt.value);
     }
 
@@ -167,15 +268,28 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitWhileStmt(Stmt.While stmt) {
     resolve(stmt.condition);
-    resolveWhile(stmt, BreakType.LOOP);
+    resolveLoop(stmt.body, BreakType.LOOP);
 
     return null;
   }
 
+  @Override
+  public Void visitYieldStmt(Stmt.Yield stmt) {
+    if (currentFunction == FunctionType.NONE) {
+      compilation.reporter.error(stmt.keyword, "Can't yield from top-level code.");
+    }
+    if (currentFunction == FunctionType.INITIALIZER) {
+      compilation.reporter.error(stmt.keyword, "Can't yield from an initializer.");
+    }
+
+    resolve(stmt.value);
+    return null;
+  }
+
   @Override
   public Void visitAssignExpr(Expr.Assign expr) {
     resolve(expr.value);
-    resolveLocal(expr, expr.name);
+    resolveLocal(expr, expr.name, true);
     return null;
   }
 
@@ -197,12 +311,33 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    resolve(expr.object);
+    return null;
+  }
+
   @Override
   public Void visitGroupingExpr(Expr.Grouping expr) {
     resolve(expr.expression);
     return null;
   }
 
+  @Override
+  public Void visitIndexExpr(Expr.Index expr) {
+    resolve(expr.object);
+    resolve(expr.index);
+    return null;
+  }
+
+  @Override
+  public Void visitIndexSetExpr(Expr.IndexSet expr) {
+    resolve(expr.object);
+    resolve(expr.index);
+    resolve(expr.value);
+    return null;
+  }
+
   @Override
   public Void visitLiteralExpr(Expr.Literal expr) {
     return null;
@@ -215,6 +350,35 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    resolve(expr.value);
+    resolve(expr.object);
+    return null;
+  }
+
+  /**
+   * this and super are only ever declared in methods, so they fail to resolve
+   * exactly where they are misused.
+   */
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    boolean inMethod = resolveLocal(expr.receiver, expr.receiver.keyword, false);
+    if (!resolveLocal(expr, expr.keyword, false)) {
+      compilation.reporter.error(expr.keyword, inMethod ? "Can't use 'super' in a class with no superclass."
+          : "Can't use 'super' outside of a class.");
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    if (!resolveLocal(expr, expr.keyword, false)) {
+      compilation.reporter.error(expr.keyword, "Can't use 'this' outside of a class.");
+    }
+    return null;
+  }
+
   @Override
   public Void visitUnaryExpr(Expr.Unary expr) {
     resolve(expr.right);
@@ -230,7 +394,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
      * "Can't read local variable in its own initializer."); }
      */
 
-    resolveLocal(expr, expr.name);
+    resolveLocal(expr, expr.name, false);
     return null;
   }
 
@@ -41,6 +41,13 @@ class Scanner {
    */
   private final String source;
   private final List<Token> tokens = new ArrayList<>();
+  private final ErrorReporter reporter;
+
+  /**
+   * Print the comments to standard output as they are scanned, which only the
+   * command line does. The output of an engine's runs is the caller's.
+   */
+  private final boolean echoComments;
 
   private static final Map<String, TokenType> keywords;
   static {
@@ -53,6 +60,8 @@ class Scanner {
     keywords.put("for", FOR);
     keywords.put("fun", FUN);
     keywords.put("if", IF);
+    keywords.put("import", IMPORT);
+    keywords.put("in", IN);
     keywords.put("nil", NIL);
     keywords.put("or", OR);
     keywords.put("print", PRINT);
@@ -62,10 +71,20 @@ class Scanner {
     keywords.put("true", TRUE);
     keywords.put("var", VAR);
     keywords.put("while", WHILE);
+    keywords.put("yield", YIELD);
+  }
+
+  /**
+   * @return whether the word is reserved, so it can't name a variable
+   */
+  static boolean isKeyword(String word) {
+    return keywords.containsKey(word);
   }
 
-  Scanner(String source) {
+  Scanner(String source, ErrorReporter reporter, boolean echoComments) {
     this.source = source;
+    this.reporter = reporter;
+    this.echoComments = echoComments;
   }
 
   /**
@@ -100,6 +119,12 @@ class Scanner {
     case '}':
       addToken(RIGHT_BRACE);
       break;
+    case '[':
+      addToken(LEFT_BRACKET);
+      break;
+    case ']':
+      addToken(RIGHT_BRACKET);
+      break;
     case ',':
       addToken(COMMA);
       break;
@@ -143,17 +168,21 @@ class Scanner {
           advance();
           sb.append(source.charAt(current - 1));
         }
-        System.out.println("Comment: " + sb.toString());
+        if (echoComments)
+          System.out.println("Comment: " + sb.toString());
       } else if (match('*')) {
         StringBuilder sb = new StringBuilder();
         blockComemnt = true;
-        System.out.println("----------Block Comment start----------");
+        if (echoComments)
+          System.out.println("----------Block Comment start----------");
         while (!isAtEnd() && (peek() != '*' || peekNext() != '/')) {
           advance();
           sb.append(source.charAt(current - 1));
         }
-        System.out.println("Comment: \"" + sb.toString() + "\"");
-        System.out.println("----------Block Comment end----------");
+        if (echoComments) {
+          System.out.println("Comment: \"" + sb.toString() + "\"");
+          System.out.println("----------Block Comment end----------");
+        }
       } else {
         addToken(SLASH);
       }
@@ -175,7 +204,7 @@ class Scanner {
       } else if (isAlpha(c)) {
         identifier();
       } else {
-        Lox.error(line, "Unexpected character.");
+        reporter.error(line, "Unexpected character.");
       }
 
       break;
@@ -206,7 +235,7 @@ class Scanner {
         advance();
     }
 
-    addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+    addToken(NUMBER, Values.number(Double.parseDouble(source.substring(start, current))));
   }
 
   private void string() {
@@ -217,7 +246,7 @@ class Scanner {
     }
 
     if (isAtEnd()) {
-      Lox.error(line, "Unterminated string.");
+      reporter.error(line, "Unterminated string.");
       return;
     }
 
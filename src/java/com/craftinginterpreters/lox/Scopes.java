@@ -0,0 +1,270 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The stack of lexical scopes used while resolving variables. <br />
+ * <br />
+ *
+ * Instead of a stack of hash maps, every declared name lives in one flat array
+ * and each scope only remembers the index where its names start. Beginning and
+ * ending a scope therefore allocates nothing, and resolving a name is a single
+ * backwards scan that counts scope boundaries as it goes. <br />
+ * <br />
+ *
+ * Scopes also work out which variables each function captures. A name that
+ * resolves to a scope outside the innermost function is a free variable of that
+ * function: it is added to the function's {@link Captures} and resolves to the
+ * environment that holds the captures, right outside the parameters. A variable
+ * that is both captured and assigned somewhere is reported to
+ * {@link Resolution#box} so that the closure and its declaring scope share it
+ * through an {@link Environment.Cell}. Everything else is captured by value.
+ * <br />
+ * <br />
+ *
+ * A function that assigns a variable declared outside it, captured or global,
+ * is marked in its {@link Captures}. Such a function cannot safely run on
+ * several threads at once, see {@link Resolution#assignsOuter}.
+ */
+class Scopes {
+  /**
+   * The free variables of a function, and where to find each one relative to
+   * the environment in which the function is declared.
+   */
+  static class Captures {
+    final String[] names;
+    final int[] depths;
+
+    /**
+     * Whether the function, or a function nested in it, assigns a variable
+     * declared outside the function.
+     */
+    final boolean assignsOuter;
+
+    Captures(String[] names, int[] depths, boolean assignsOuter) {
+      this.names = names;
+      this.depths = depths;
+      this.assignsOuter = assignsOuter;
+    }
+  }
+
+  private static class Function {
+    final int base;
+    final List<String> names = new ArrayList<>();
+    final List<Integer> depths = new ArrayList<>();
+    boolean assignsOuter = false;
+
+    Function(int base) {
+      this.base = base;
+    }
+  }
+
+  private final Resolution resolution;
+
+  private String[] names = new String[16];
+  private Token[] declarations = new Token[16];
+  private boolean[] defined = new boolean[16];
+  private boolean[] captured = new boolean[16];
+  private boolean[] assigned = new boolean[16];
+  private int count = 0;
+
+  private int[] starts = new int[8];
+  private int depth = 0;
+
+  private final List<Function> functions = new ArrayList<>();
+
+  Scopes(Resolution resolution) {
+    this.resolution = resolution;
+  }
+
+  void begin() {
+    if (depth == starts.length) {
+      starts = Arrays.copyOf(starts, depth * 2);
+    }
+    starts[depth++] = count;
+  }
+
+  void end() {
+    count = starts[--depth];
+  }
+
+  /**
+   * Starts collecting the free variables of a function. The innermost scope,
+   * which must already be open, is the one holding its parameters.
+   */
+  void beginFunction() {
+    functions.add(new Function(depth - 1));
+  }
+
+  /**
+   * @return the free variables of the innermost function, in the order they
+   *         were first referenced
+   */
+  Captures endFunction() {
+    Function function = functions.remove(functions.size() - 1);
+    int[] depths = new int[function.depths.size()];
+    for (int i = 0; i < depths.length; i++) {
+      depths[i] = function.depths.get(i);
+    }
+    return new Captures(function.names.toArray(new String[0]), depths, function.assignsOuter);
+  }
+
+  /**
+   * Adds a name to the innermost scope. Declaring a name twice in the same scope
+   * reuses its entry, just like putting the same key in a map again, and counts
+   * as assigning it.
+   *
+   * @param name the variable name
+   * @param late whether the value is only stored after closures declared in
+   *             it may have captured it, as for a function's own name
+   */
+  void declare(Token name, boolean late) {
+    declare(name.lexeme, name, late);
+  }
+
+  private void declare(String name, Token declaration, boolean late) {
+    if (depth == 0)
+      return;
+
+    int index = indexInInnermost(name);
+    if (index < 0) {
+      if (count == names.length) {
+        names = Arrays.copyOf(names, count * 2);
+        declarations = Arrays.copyOf(declarations, count * 2);
+        defined = Arrays.copyOf(defined, count * 2);
+        captured = Arrays.copyOf(captured, count * 2);
+        assigned = Arrays.copyOf(assigned, count * 2);
+      }
+      index = count++;
+      names[index] = name;
+      declarations[index] = declaration;
+      captured[index] = false;
+      assigned[index] = late;
+    } else {
+      assign(index);
+    }
+    defined[index] = false;
+  }
+
+  void define(String name) {
+    if (depth == 0)
+      return;
+
+    int index = indexInInnermost(name);
+    if (index >= 0)
+      defined[index] = true;
+  }
+
+  /**
+   * Declares and defines a variable that the interpreter defines itself and
+   * that code cannot assign, like this in a method or super in a subclass.
+   *
+   * @param name the variable name
+   */
+  void declareImplicit(String name) {
+    declare(name, null, false);
+    define(name);
+  }
+
+  /**
+   * Opens one scope holding the captured variables of a function, for resolving
+   * a body that was parsed after the function was declared.
+   *
+   * @param captured the names from {@link Captures#names}
+   */
+  void restore(String[] captured) {
+    begin();
+    for (String name : captured) {
+      // Whether these need a cell was decided where they were declared.
+      declare(name, null, false);
+      define(name);
+    }
+  }
+
+  /**
+   * @param name       the variable name
+   * @param assignment whether the variable is being assigned
+   * @return how many environments out the name lives, or -1 if it is not in any
+   *         scope and must be a global
+   */
+  int resolve(String name, boolean assignment) {
+    int scope = depth - 1;
+    for (int i = count - 1; i >= 0; i--) {
+      while (i < starts[scope]) {
+        scope--;
+      }
+      if (names[i].equals(name)) {
+        if (assignment) {
+          assign(i);
+          assignOuter(scope);
+        }
+        return distance(i, scope, functions.size() - 1, depth - 1);
+      }
+    }
+
+    if (assignment)
+      assignOuter(-1);
+    return -1;
+  }
+
+  /**
+   * Marks the functions that an assignment to a variable of a scope reaches out
+   * of.
+   *
+   * @param scope the scope that declares the variable, or -1 for a global
+   */
+  private void assignOuter(int scope) {
+    for (int i = functions.size() - 1; i >= 0 && scope < functions.get(i).base; i--) {
+      functions.get(i).assignsOuter = true;
+    }
+  }
+
+  /**
+   * @param entry    the index of the variable
+   * @param scope    the scope that declares it
+   * @param function the innermost function around {@code from}
+   * @param from     the scope it is referenced from
+   * @return the number of environments between the reference and the variable
+   */
+  private int distance(int entry, int scope, int function, int from) {
+    if (function < 0 || scope >= functions.get(function).base)
+      return from - scope;
+
+    Function frame = functions.get(function);
+    if (!frame.names.contains(names[entry])) {
+      // Outer functions have to capture it too, so that it can be copied from
+      // their captures when this one is created.
+      int source = distance(entry, scope, function - 1, frame.base - 1);
+      frame.names.add(names[entry]);
+      frame.depths.add(source);
+
+      if (!captured[entry]) {
+        captured[entry] = true;
+        box(entry);
+      }
+    }
+    return from - frame.base + 1;
+  }
+
+  private void assign(int entry) {
+    if (!assigned[entry]) {
+      assigned[entry] = true;
+      box(entry);
+    }
+  }
+
+  private void box(int entry) {
+    if (captured[entry] && assigned[entry] && declarations[entry] != null)
+      resolution.box(declarations[entry]);
+  }
+
+  private int indexInInnermost(String name) {
+    for (int i = count - 1; i >= starts[depth - 1]; i--) {
+      if (names[i].equals(name))
+        return i;
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,78 @@
+package com.craftinginterpreters.lox;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The layout of the fields of an instance, also known as a hidden class. <br />
+ * <br />
+ *
+ * Every class has a root shape without fields. Adding a field to an instance
+ * moves it to the shape that has one more field, which is created the first
+ * time and shared from then on, so instances that get the same fields in the
+ * same order end up with the same shape. A shape maps each field name to a
+ * slot in {@link LoxInstance#fields}. <br />
+ * <br />
+ *
+ * A shape never changes and belongs to one class, whose methods never change
+ * either. Where a property lives is therefore the same for every instance of a
+ * shape, which is what lets a {@link PropertyCache} remember it.
+ */
+final class Shape implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  final LoxClass owner;
+  private final String[] names;
+  private final Map<String, Shape> transitions = new HashMap<>();
+
+  /**
+   * @param owner the class whose root shape this is
+   */
+  Shape(LoxClass owner) {
+    this(owner, new String[0]);
+  }
+
+  private Shape(LoxClass owner, String[] names) {
+    this.owner = owner;
+    this.names = names;
+  }
+
+  /**
+   * @return the number of fields
+   */
+  int size() {
+    return names.length;
+  }
+
+  /**
+   * Only runs when a cache misses, and instances rarely have many fields, so a
+   * scan is fine.
+   *
+   * @return the slot of the field, or -1 if the shape does not have it
+   */
+  int slot(String name) {
+    for (int i = names.length - 1; i >= 0; i--) {
+      if (names[i].equals(name))
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * @param name a field this shape does not have
+   * @return the shape with that field added in the next slot
+   */
+  synchronized Shape with(String name) {
+    Shape next = transitions.get(name);
+    if (next == null) {
+      String[] grown = Arrays.copyOf(names, names.length + 1);
+      grown[names.length] = name;
+      next = new Shape(owner, grown);
+      transitions.put(name, next);
+      owner.expectFields(grown.length);
+    }
+    return next;
+  }
+}
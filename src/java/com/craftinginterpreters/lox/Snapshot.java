@@ -0,0 +1,290 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The globals of a program saved to a file once it has run, so that a later
+ * run can start from them instead of compiling and running the same prelude
+ * again. <br />
+ * <br />
+ *
+ * <code>jlox --snapshot=file prelude</code> runs the prelude and saves the
+ * snapshot, and <code>jlox --restore=file script</code> reads it back and
+ * compiles the script into the program the prelude started, the way the REPL
+ * compiles one line after another. Functions and classes keep their tree, the
+ * variables their closures captured and the {@link Resolution} and
+ * {@link Optimizer} facts their bodies run with, so restoring is one file read
+ * and no compiling or running at all. <br />
+ * <br />
+ *
+ * The trees of the functions are written by a {@link TreeWriter}, which
+ * takes a few bytes a node, and the values the globals hold, like closures,
+ * classes, instances, arrays and maps, by Java serialization. The globals
+ * object and the natives are stored by name and bound to those of the new run,
+ * so a function that calls clock calls the clock of the run restoring it.
+ * Values that only live while a program runs, like tasks, channels,
+ * generators, writers and buffers, cannot be saved, and neither can modules.
+ * A snapshot starts with the version of its format, and one of another
+ * version is refused. Restoring one only creates classes of this package and
+ * the Java collections they use.
+ */
+final class Snapshot {
+  private static final String MAGIC = "jlox snapshot";
+
+  /**
+   * The version of the format, to raise whenever the {@link TreeWriter} records
+   * or the fields of a saved class change. The saved classes fix their
+   * serialVersionUID, so other edits to them keep old snapshots readable.
+   */
+  private static final int VERSION = 1;
+
+  /**
+   * Stands for the globals, or for the native with a name, in a snapshot.
+   */
+  private static final class Reference implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The name of the native, or null for the globals.
+     */
+    final String name;
+
+    Reference(String name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * Stands for the declaration of a function, by its place in the trees.
+   */
+  private static final class Declaration implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final int index;
+
+    Declaration(int index) {
+      this.index = index;
+    }
+  }
+
+  final Compilation compilation;
+  final Interpreter interpreter;
+
+  private Snapshot(Compilation compilation, Interpreter interpreter) {
+    this.compilation = compilation;
+    this.interpreter = interpreter;
+  }
+
+  /**
+   * Saves the globals that the program defined, along with what it takes to
+   * run and go on compiling it.
+   *
+   * @throws IOException if the file can't be written or a global holds a value
+   *                     that can't be saved
+   */
+  static void save(Path path, Compilation compilation, Interpreter interpreter) throws IOException {
+    Globals globals = interpreter.globals;
+    Map<String, Object> variables = globals.variables();
+
+    Globals fresh = new Globals(compilation.resolution);
+    Interpreter.defineNatives(fresh);
+    Map<String, Object> originals = fresh.variables();
+    Map<Object, String> natives = new IdentityHashMap<>();
+    Map<String, Object> defined = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> variable : variables.entrySet()) {
+      Object value = variable.getValue();
+      Object original = originals.get(variable.getKey());
+      if (original != null && !(value instanceof Serializable) && value.getClass() == original.getClass()) {
+        natives.put(value, variable.getKey());
+      } else {
+        defined.put(variable.getKey(), value);
+      }
+    }
+
+    ByteArrayOutputStream trees = new ByteArrayOutputStream();
+    ByteArrayOutputStream values = new ByteArrayOutputStream();
+    TreeWriter writer = new TreeWriter(trees, compilation.resolution);
+    try (Saving out = new Saving(values, globals, natives, writer)) {
+      out.writeInt(defined.size());
+      for (Map.Entry<String, Object> variable : defined.entrySet()) {
+        out.writeUTF(variable.getKey());
+        try {
+          out.writeObject(variable.getValue());
+        } catch (NotSerializableException error) {
+          throw new IOException(
+              "Can't snapshot the global '" + variable.getKey() + "', since it refers to " + error.getMessage() + ".");
+        }
+      }
+    }
+    writer.finish();
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+      out.writeUTF(MAGIC);
+      out.writeInt(VERSION);
+      Set<String> assigned = compilation.optimizer().assignedInFunctions();
+      out.writeInt(assigned.size());
+      for (String name : assigned) {
+        out.writeUTF(name);
+      }
+      trees.writeTo(out);
+      values.writeTo(out);
+    }
+  }
+
+  /**
+   * @return the program and an interpreter whose globals are those of the
+   *         snapshot
+   * @throws IOException if the file can't be read, is not a snapshot, or is one
+   *                     of another version
+   */
+  static Snapshot restore(Path path, LoxEngine engine, ErrorReporter reporter, OutputBuffer out)
+      throws IOException {
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(path);
+    } catch (IOException error) {
+      throw new IOException("Can't read '" + path + "'.", error);
+    }
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    int version;
+    try {
+      if (!MAGIC.equals(in.readUTF()))
+        throw new IOException();
+      version = in.readInt();
+    } catch (IOException error) {
+      throw new IOException("'" + path + "' is not a snapshot.");
+    }
+    if (version != VERSION)
+      throw new IOException("'" + path + "' is a snapshot of version " + version + ", but this jlox reads version "
+          + VERSION + ".");
+
+    try {
+      Resolution resolution = new Resolution(false);
+      Compilation compilation = new Compilation(engine, reporter, resolution, true);
+      Globals globals = new Globals(resolution);
+      Interpreter.defineNatives(globals);
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        compilation.optimizer().assignedInFunctions().add(in.readUTF());
+      }
+
+      List<Stmt.Function> functions = new TreeReader(in, resolution).read();
+      try (Restoring values = new Restoring(in, globals, functions)) {
+        count = values.readInt();
+        for (int i = 0; i < count; i++) {
+          String name = values.readUTF();
+          globals.define(name, values.readObject());
+        }
+      }
+      return new Snapshot(compilation, engine.interpreter(resolution, out, globals));
+    } catch (IOException | ClassNotFoundException | RuntimeException error) {
+      // A file that is cut short can fail anywhere.
+      throw new IOException("'" + path + "' is a damaged snapshot.");
+    }
+  }
+
+  private static final class Saving extends ObjectOutputStream {
+    private final Globals globals;
+    private final Map<Object, String> natives;
+    private final TreeWriter writer;
+    private final Map<Stmt.Function, Integer> functions = new IdentityHashMap<>();
+
+    Saving(OutputStream out, Globals globals, Map<Object, String> natives, TreeWriter writer) throws IOException {
+      super(out);
+      this.globals = globals;
+      this.natives = natives;
+      this.writer = writer;
+      enableReplaceObject(true);
+    }
+
+    @Override
+    protected Object replaceObject(Object object) throws IOException {
+      if (object == globals)
+        return new Reference(null);
+      if (natives.containsKey(object))
+        return new Reference(natives.get(object));
+      if (object instanceof Stmt.Function)
+        return declaration((Stmt.Function) object);
+      // The code of a module is not part of the snapshot.
+      if (object instanceof Globals)
+        throw new NotSerializableException("a module");
+      if (!(object instanceof Serializable))
+        throw new NotSerializableException(Interpreter.stringify(object));
+      return object;
+    }
+
+    private Declaration declaration(Stmt.Function function) throws IOException {
+      Integer index = functions.get(function);
+      if (index == null) {
+        index = functions.size();
+        functions.put(function, index);
+        writer.write(function);
+      }
+      return new Declaration(index);
+    }
+  }
+
+  private static final class Restoring extends ObjectInputStream {
+    private final Globals globals;
+    private final Map<String, Object> natives;
+    private final List<Stmt.Function> functions;
+
+    /**
+     * @param globals   the globals to restore into, which hold only the natives
+     *                  so far
+     * @param functions the functions that the trees of the snapshot declare
+     */
+    Restoring(InputStream in, Globals globals, List<Stmt.Function> functions) throws IOException {
+      super(in);
+      this.globals = globals;
+      this.natives = globals.variables();
+      this.functions = functions;
+      enableResolveObject(true);
+      setObjectInputFilter(Restoring::check);
+    }
+
+    @Override
+    protected Object resolveObject(Object object) {
+      if (object instanceof Declaration)
+        return functions.get(((Declaration) object).index);
+      if (!(object instanceof Reference))
+        return object;
+      Reference reference = (Reference) object;
+      return reference.name == null ? globals : natives.get(reference.name);
+    }
+
+    private static ObjectInputFilter.Status check(ObjectInputFilter.FilterInfo info) {
+      Class<?> type = info.serialClass();
+      while (type != null && type.isArray()) {
+        type = type.getComponentType();
+      }
+      if (type == null || type.isPrimitive())
+        return ObjectInputFilter.Status.UNDECIDED;
+
+      String name = type.getName();
+      if (name.startsWith(Snapshot.class.getPackageName() + ".") || name.startsWith("java.lang.")
+          || name.startsWith("java.util."))
+        return ObjectInputFilter.Status.ALLOWED;
+      return ObjectInputFilter.Status.REJECTED;
+    }
+  }
+}
@@ -6,13 +6,17 @@ abstract class Stmt {
   interface Visitor<R> {
     R visitBlockStmt(Block stmt);
     R visitBreakStmt(Break stmt);
+    R visitClassStmt(Class stmt);
     R visitExpressionStmt(Expression stmt);
+    R visitForInStmt(ForIn stmt);
     R visitFunctionStmt(Function stmt);
     R visitIfStmt(If stmt);
+    R visitImportStmt(Import stmt);
     R visitPrintStmt(Print stmt);
     R visitReturnStmt(Return stmt);
     R visitVarStmt(Var stmt);
     R visitWhileStmt(While stmt);
+    R visitYieldStmt(Yield stmt);
   }
   static class Block extends Stmt {
     Block(List<Stmt> statements) {
@@ -38,6 +42,22 @@ abstract class Stmt {
 
     final Token keyword;
   }
+  static class Class extends Stmt {
+    Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
+      this.name = name;
+      this.superclass = superclass;
+      this.methods = methods;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitClassStmt(this);
+    }
+
+    final Token name;
+    final Expr.Variable superclass;
+    final List<Stmt.Function> methods;
+  }
   static class Expression extends Stmt {
     Expression(Expr expression) {
       this.expression = expression;
@@ -50,11 +70,30 @@ abstract class Stmt {
 
     final Expr expression;
   }
+  static class ForIn extends Stmt {
+    ForIn(Token keyword, Token name, Expr iterable, Stmt body) {
+      this.keyword = keyword;
+      this.name = name;
+      this.iterable = iterable;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForInStmt(this);
+    }
+
+    final Token keyword;
+    final Token name;
+    final Expr iterable;
+    final Stmt body;
+  }
   static class Function extends Stmt {
-    Function(Token name, List<Token> params, List<Stmt> body) {
+    Function(Token name, List<Token> params, List<Stmt> body, boolean generator) {
       this.name = name;
       this.params = params;
       this.body = body;
+      this.generator = generator;
     }
 
     @Override
@@ -65,6 +104,7 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    final boolean generator;
   }
   static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -82,6 +122,22 @@ abstract class Stmt {
     final Stmt thenBranch;
     final Stmt elseBranch;
   }
+  static class Import extends Stmt {
+    Import(Token keyword, Token path, Token name) {
+      this.keyword = keyword;
+      this.path = path;
+      this.name = name;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitImportStmt(this);
+    }
+
+    final Token keyword;
+    final Token path;
+    final Token name;
+  }
   static class Print extends Stmt {
     Print(Expr expression) {
       this.expression = expression;
@@ -136,6 +192,20 @@ abstract class Stmt {
     final Expr condition;
     final Stmt body;
   }
+  static class Yield extends Stmt {
+    Yield(Token keyword, Expr value) {
+      this.keyword = keyword;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitYieldStmt(this);
+    }
+
+    final Token keyword;
+    final Expr value;
+  }
 
   abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,285 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.TreeWriter.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the trees that a {@link TreeWriter} wrote, and puts what was known
+ * about their nodes into a {@link Resolution}.
+ */
+final class TreeReader {
+  private static final TokenType[] TOKEN_TYPES = TokenType.values();
+  private static final TypeInference.Type[] TYPES = TypeInference.Type.values();
+
+  private final DataInputStream in;
+  private final Resolution resolution;
+  private final List<Object> nodes = new ArrayList<>();
+  private final List<Token> tokens = new ArrayList<>();
+  private final List<String> strings = new ArrayList<>();
+
+  TreeReader(DataInputStream in, Resolution resolution) {
+    this.in = in;
+    this.resolution = resolution;
+  }
+
+  /**
+   * @return the functions in the order they were written, up to the end of the
+   *         trees
+   * @throws StreamCorruptedException if the trees don't make sense
+   */
+  List<Stmt.Function> read() throws IOException {
+    List<Stmt.Function> functions = new ArrayList<>();
+    while (true) {
+      Stmt function = readStmt();
+      if (function == null)
+        return functions;
+      functions.add(cast(function, Stmt.Function.class));
+    }
+  }
+
+  private Expr readExpr() throws IOException {
+    byte tag = in.readByte();
+    if (tag == NULL)
+      return null;
+    if (tag == REFERENCE)
+      return cast(reference(), Expr.class);
+
+    Expr expr = readExpr(tag);
+    byte type = in.readByte();
+    expr.type = type < 0 ? null : TYPES[index(type, TYPES.length)];
+    expr.hoisted = in.readInt();
+    int depth = in.readInt();
+    if (depth >= 0)
+      resolution.resolve(expr, depth);
+    nodes.add(expr);
+    return expr;
+  }
+
+  private Expr readExpr(byte tag) throws IOException {
+    switch (tag) {
+    case ASSIGN:
+      return new Expr.Assign(readToken(), readExpr());
+    case BINARY:
+      return new Expr.Binary(readExpr(), readToken(), readExpr());
+    case CALL:
+      return new Expr.Call(readExpr(), readToken(), readExprs());
+    case GET:
+      return new Expr.Get(readExpr(), readToken(), new PropertyCache());
+    case GROUPING:
+      return new Expr.Grouping(readExpr());
+    case INDEX:
+      return new Expr.Index(readExpr(), readToken(), readExpr());
+    case INDEX_SET:
+      return new Expr.IndexSet(readExpr(), readToken(), readExpr(), readExpr());
+    case LITERAL:
+      return new Expr.Literal(readValue());
+    case LOGICAL:
+      return new Expr.Logical(readExpr(), readToken(), readExpr());
+    case SET:
+      return new Expr.Set(readExpr(), readToken(), readExpr(), new PropertyCache());
+    case SUPER:
+      return new Expr.Super(readToken(), readToken(), cast(readExpr(), Expr.This.class));
+    case THIS:
+      return new Expr.This(readToken());
+    case UNARY:
+      return new Expr.Unary(readToken(), readExpr());
+    case VARIABLE:
+      return new Expr.Variable(readToken());
+    default:
+      throw new StreamCorruptedException("Unknown expression " + tag + ".");
+    }
+  }
+
+  private Stmt readStmt() throws IOException {
+    byte tag = in.readByte();
+    if (tag == NULL)
+      return null;
+    if (tag == REFERENCE)
+      return cast(reference(), Stmt.class);
+
+    Stmt stmt;
+    switch (tag) {
+    case BLOCK:
+      stmt = new Stmt.Block(readStmts());
+      break;
+    case BREAK:
+      stmt = new Stmt.Break(readToken());
+      break;
+    case CLASS:
+      stmt = readClass();
+      break;
+    case EXPRESSION:
+      stmt = new Stmt.Expression(readExpr());
+      break;
+    case FOR_IN:
+      stmt = new Stmt.ForIn(readToken(), readToken(), readExpr(), readStmt());
+      break;
+    case FUNCTION:
+      stmt = readFunction();
+      break;
+    case IF:
+      stmt = new Stmt.If(readExpr(), readStmt(), readStmt());
+      break;
+    case IMPORT:
+      stmt = new Stmt.Import(readToken(), readToken(), readToken());
+      break;
+    case PRINT:
+      stmt = new Stmt.Print(readExpr());
+      break;
+    case RETURN:
+      stmt = new Stmt.Return(readToken(), readExpr());
+      break;
+    case VAR:
+      stmt = new Stmt.Var(readToken(), readExpr());
+      break;
+    case WHILE:
+      stmt = readWhile();
+      break;
+    case YIELD:
+      stmt = new Stmt.Yield(readToken(), readExpr());
+      break;
+    default:
+      throw new StreamCorruptedException("Unknown statement " + tag + ".");
+    }
+    nodes.add(stmt);
+    return stmt;
+  }
+
+  private Stmt.Class readClass() throws IOException {
+    Token name = readToken();
+    Expr.Variable superclass = cast(readExpr(), Expr.Variable.class);
+    List<Stmt.Function> methods = new ArrayList<>();
+    for (Stmt method : readStmts()) {
+      methods.add(cast(method, Stmt.Function.class));
+    }
+    return new Stmt.Class(name, superclass, methods);
+  }
+
+  private Stmt.Function readFunction() throws IOException {
+    Token name = readToken();
+    int count = in.readInt();
+    List<Token> params = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      params.add(readToken());
+    }
+    Stmt.Function function = new Stmt.Function(name, params, readStmts(), in.readBoolean());
+
+    if (in.readBoolean()) {
+      count = in.readInt();
+      String[] names = new String[count];
+      int[] depths = new int[count];
+      for (int i = 0; i < count; i++) {
+        names[i] = readString();
+        depths[i] = in.readInt();
+      }
+      resolution.capture(function, new Scopes.Captures(names, depths, in.readBoolean()));
+    }
+    return function;
+  }
+
+  private Stmt.While readWhile() throws IOException {
+    Stmt.While stmt = new Stmt.While(readExpr(), readStmt());
+
+    if (in.readBoolean()) {
+      Optimizer.Loop loop = new Optimizer.Loop();
+      loop.hoisted = in.readInt();
+      if (in.readBoolean()) {
+        loop.counted = new Optimizer.CountedLoop(readToken(), TOKEN_TYPES[index(in.readByte(), TOKEN_TYPES.length)],
+            readExpr(), in.readDouble(), readStmt(), in.readBoolean());
+      }
+      resolution.loop(stmt, loop);
+    }
+    return stmt;
+  }
+
+  private List<Expr> readExprs() throws IOException {
+    int count = in.readInt();
+    List<Expr> exprs = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      exprs.add(readExpr());
+    }
+    return exprs;
+  }
+
+  private List<Stmt> readStmts() throws IOException {
+    int count = in.readInt();
+    List<Stmt> stmts = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      stmts.add(readStmt());
+    }
+    return stmts;
+  }
+
+  private Object reference() throws IOException {
+    return nodes.get(index(in.readInt(), nodes.size()));
+  }
+
+  private Token readToken() throws IOException {
+    int number = in.readInt();
+    if (number < 0)
+      return null;
+    if (number < tokens.size())
+      return tokens.get(number);
+    if (number > tokens.size())
+      throw new StreamCorruptedException("Token " + number + " out of order.");
+
+    TokenType type = TOKEN_TYPES[index(in.readByte(), TOKEN_TYPES.length)];
+    Token token = new Token(type, readString(), readValue(), in.readInt());
+    tokens.add(token);
+    if (in.readBoolean())
+      resolution.box(token);
+    return token;
+  }
+
+  private String readString() throws IOException {
+    int number = in.readInt();
+    if (number < strings.size())
+      return strings.get(index(number, strings.size()));
+    if (number > strings.size())
+      throw new StreamCorruptedException("String " + number + " out of order.");
+
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    String string = new String(bytes, StandardCharsets.UTF_8);
+    strings.add(string);
+    return string;
+  }
+
+  private Object readValue() throws IOException {
+    byte kind = in.readByte();
+    switch (kind) {
+    case NIL:
+      return null;
+    case TRUE:
+      return true;
+    case FALSE:
+      return false;
+    case INTEGER:
+      return Values.number(in.readLong());
+    case DOUBLE:
+      return Values.number(in.readDouble());
+    case STRING:
+      return readString();
+    default:
+      throw new StreamCorruptedException("Unknown literal " + kind + ".");
+    }
+  }
+
+  private static int index(int index, int size) throws StreamCorruptedException {
+    if (index < 0 || index >= size)
+      throw new StreamCorruptedException("Index " + index + " out of range.");
+    return index;
+  }
+
+  private static <T> T cast(Object node, Class<T> type) throws StreamCorruptedException {
+    if (node != null && !type.isInstance(node))
+      throw new StreamCorruptedException("Expected " + type.getSimpleName() + ".");
+    return type.cast(node);
+  }
+}
@@ -0,0 +1,492 @@
+package com.craftinginterpreters.lox;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes syntax trees for a {@link Snapshot}, together with what the
+ * {@link Resolution} and the {@link Optimizer} know about their nodes, so that
+ * a {@link TreeReader} can build them again without scanning, parsing or
+ * resolving anything. <br />
+ * <br />
+ *
+ * Every node is a tag byte and its fields, children first. A node, token or
+ * string that was written before is only its number the second time, so nodes
+ * that the optimizer shares between a tree and its loop facts come back shared.
+ */
+final class TreeWriter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  static final byte NULL = 0;
+  static final byte REFERENCE = 1;
+
+  static final byte ASSIGN = 2;
+  static final byte BINARY = 3;
+  static final byte CALL = 4;
+  static final byte GET = 5;
+  static final byte GROUPING = 6;
+  static final byte INDEX = 7;
+  static final byte INDEX_SET = 8;
+  static final byte LITERAL = 9;
+  static final byte LOGICAL = 10;
+  static final byte SET = 11;
+  static final byte SUPER = 12;
+  static final byte THIS = 13;
+  static final byte UNARY = 14;
+  static final byte VARIABLE = 15;
+
+  static final byte BLOCK = 2;
+  static final byte BREAK = 3;
+  static final byte CLASS = 4;
+  static final byte EXPRESSION = 5;
+  static final byte FOR_IN = 6;
+  static final byte FUNCTION = 7;
+  static final byte IF = 8;
+  static final byte IMPORT = 9;
+  static final byte PRINT = 10;
+  static final byte RETURN = 11;
+  static final byte VAR = 12;
+  static final byte WHILE = 13;
+  static final byte YIELD = 14;
+
+  static final byte NIL = 0;
+  static final byte TRUE = 1;
+  static final byte FALSE = 2;
+  static final byte INTEGER = 3;
+  static final byte DOUBLE = 4;
+  static final byte STRING = 5;
+
+  private final DataOutputStream out;
+  private final Resolution resolution;
+  private final Map<Object, Integer> nodes = new IdentityHashMap<>();
+  private final Map<Token, Integer> tokens = new IdentityHashMap<>();
+  private final Map<String, Integer> strings = new HashMap<>();
+
+  TreeWriter(OutputStream out, Resolution resolution) {
+    this.out = new DataOutputStream(out);
+    this.resolution = resolution;
+  }
+
+  /**
+   * Writes a function that a value refers to, along with everything nested in
+   * it. A {@link TreeReader} returns the functions in the same order.
+   */
+  void write(Stmt.Function function) throws IOException {
+    try {
+      write((Stmt) function);
+    } catch (UncheckedIOException error) {
+      throw error.getCause();
+    }
+  }
+
+  /**
+   * Ends the trees.
+   */
+  void finish() throws IOException {
+    out.writeByte(NULL);
+    out.flush();
+  }
+
+  private void write(Expr expr) {
+    if (reference(expr))
+      return;
+
+    expr.accept(this);
+    writeByte(expr.type == null ? -1 : expr.type.ordinal());
+    writeInt(expr.hoisted);
+    Integer depth = resolution.depth(expr);
+    writeInt(depth == null ? -1 : depth);
+    nodes.put(expr, nodes.size());
+  }
+
+  private void write(Stmt stmt) {
+    if (reference(stmt))
+      return;
+
+    stmt.accept(this);
+    nodes.put(stmt, nodes.size());
+  }
+
+  /**
+   * Writes null, or the number of a node that was written before.
+   *
+   * @return whether that was all there is to write
+   */
+  private boolean reference(Object node) {
+    if (node == null) {
+      writeByte(NULL);
+      return true;
+    }
+
+    Integer number = nodes.get(node);
+    if (number == null)
+      return false;
+    writeByte(REFERENCE);
+    writeInt(number);
+    return true;
+  }
+
+  private void writeExprs(List<Expr> exprs) {
+    writeInt(exprs.size());
+    for (Expr expr : exprs) {
+      write(expr);
+    }
+  }
+
+  private void writeStmts(List<? extends Stmt> stmts) {
+    writeInt(stmts.size());
+    for (Stmt stmt : stmts) {
+      write(stmt);
+    }
+  }
+
+  private void write(Token token) {
+    if (token == null) {
+      writeInt(-1);
+      return;
+    }
+
+    Integer number = tokens.get(token);
+    if (number != null) {
+      writeInt(number);
+      return;
+    }
+
+    number = tokens.size();
+    tokens.put(token, number);
+    writeInt(number);
+    writeByte(token.type.ordinal());
+    write(token.lexeme);
+    writeValue(token.literal);
+    writeInt(token.line);
+    writeBoolean(resolution.isBoxed(token));
+  }
+
+  private void write(String string) {
+    Integer number = strings.get(string);
+    if (number != null) {
+      writeInt(number);
+      return;
+    }
+
+    number = strings.size();
+    strings.put(string, number);
+    writeInt(number);
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    writeInt(bytes.length);
+    try {
+      out.write(bytes);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+  }
+
+  private void writeValue(Object value) {
+    if (value == null) {
+      writeByte(NIL);
+    } else if (value instanceof Boolean) {
+      writeByte((Boolean) value ? TRUE : FALSE);
+    } else if (value instanceof Long) {
+      writeByte(INTEGER);
+      try {
+        out.writeLong((Long) value);
+      } catch (IOException error) {
+        throw new UncheckedIOException(error);
+      }
+    } else if (value instanceof Double) {
+      writeByte(DOUBLE);
+      writeDouble((Double) value);
+    } else if (value instanceof CharSequence) {
+      writeByte(STRING);
+      write(value.toString());
+    } else {
+      throw new IllegalStateException("Unexpected literal " + value + ".");
+    }
+  }
+
+  private void writeByte(int value) {
+    try {
+      out.writeByte(value);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+  }
+
+  private void writeBoolean(boolean value) {
+    writeByte(value ? 1 : 0);
+  }
+
+  private void writeInt(int value) {
+    try {
+      out.writeInt(value);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+  }
+
+  private void writeDouble(double value) {
+    try {
+      out.writeDouble(value);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    writeByte(ASSIGN);
+    write(expr.name);
+    write(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    writeByte(BINARY);
+    write(expr.left);
+    write(expr.operator);
+    write(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    writeByte(CALL);
+    write(expr.callee);
+    write(expr.paren);
+    writeExprs(expr.arguments);
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    writeByte(GET);
+    write(expr.object);
+    write(expr.name);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    writeByte(GROUPING);
+    write(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitIndexExpr(Expr.Index expr) {
+    writeByte(INDEX);
+    write(expr.object);
+    write(expr.bracket);
+    write(expr.index);
+    return null;
+  }
+
+  @Override
+  public Void visitIndexSetExpr(Expr.IndexSet expr) {
+    writeByte(INDEX_SET);
+    write(expr.object);
+    write(expr.bracket);
+    write(expr.index);
+    write(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    writeByte(LITERAL);
+    writeValue(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    writeByte(LOGICAL);
+    write(expr.left);
+    write(expr.operator);
+    write(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    writeByte(SET);
+    write(expr.object);
+    write(expr.name);
+    write(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    writeByte(SUPER);
+    write(expr.keyword);
+    write(expr.method);
+    write(expr.receiver);
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    writeByte(THIS);
+    write(expr.keyword);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    writeByte(UNARY);
+    write(expr.operator);
+    write(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    writeByte(VARIABLE);
+    write(expr.name);
+    return null;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    writeByte(BLOCK);
+    writeStmts(stmt.statements);
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    writeByte(BREAK);
+    write(stmt.keyword);
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    writeByte(CLASS);
+    write(stmt.name);
+    write(stmt.superclass);
+    writeStmts(stmt.methods);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    writeByte(EXPRESSION);
+    write(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitForInStmt(Stmt.ForIn stmt) {
+    writeByte(FOR_IN);
+    write(stmt.keyword);
+    write(stmt.name);
+    write(stmt.iterable);
+    write(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    writeByte(FUNCTION);
+    write(stmt.name);
+    writeInt(stmt.params.size());
+    for (Token param : stmt.params) {
+      write(param);
+    }
+    writeStmts(stmt.body);
+    writeBoolean(stmt.generator);
+
+    Scopes.Captures captures = resolution.captures(stmt);
+    writeBoolean(captures != null);
+    if (captures != null) {
+      writeInt(captures.names.length);
+      for (int i = 0; i < captures.names.length; i++) {
+        write(captures.names[i]);
+        writeInt(captures.depths[i]);
+      }
+      writeBoolean(captures.assignsOuter);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    writeByte(IF);
+    write(stmt.condition);
+    write(stmt.thenBranch);
+    write(stmt.elseBranch);
+    return null;
+  }
+
+  @Override
+  public Void visitImportStmt(Stmt.Import stmt) {
+    writeByte(IMPORT);
+    write(stmt.keyword);
+    write(stmt.path);
+    write(stmt.name);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    writeByte(PRINT);
+    write(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    writeByte(RETURN);
+    write(stmt.keyword);
+    write(stmt.value);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    writeByte(VAR);
+    write(stmt.name);
+    write(stmt.initializer);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    writeByte(WHILE);
+    write(stmt.condition);
+    write(stmt.body);
+
+    Optimizer.Loop loop = resolution.loop(stmt);
+    writeBoolean(loop != null);
+    if (loop != null) {
+      writeInt(loop.hoisted);
+      Optimizer.CountedLoop counted = loop.counted;
+      writeBoolean(counted != null);
+      if (counted != null) {
+        write(counted.counter);
+        writeByte(counted.comparison.ordinal());
+        write(counted.bound);
+        writeDouble(counted.step);
+        write(counted.body);
+        writeBoolean(counted.observed);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitYieldStmt(Stmt.Yield stmt) {
+    writeByte(YIELD);
+    write(stmt.keyword);
+    write(stmt.value);
+    return null;
+  }
+}
@@ -0,0 +1,448 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flow-sensitive type inference over a resolved program. <br />
+ * <br />
+ *
+ * Every expression whose value is known to always be a number, boolean, string
+ * or nil gets that type stored in {@link Expr#type}. Globals are never typed,
+ * since any code can assign them. A local that is assigned from inside a nested
+ * function is untyped from the point where that function is declared, because
+ * calling the function may change it at any time. <br />
+ * <br />
+ *
+ * Loops are analysed until the types at the loop head stop changing, and only
+ * the final pass records anything, so the types hold for every iteration.
+ */
+class TypeInference implements Expr.Visitor<TypeInference.Type>, Stmt.Visitor<Void> {
+  enum Type {
+    NUMBER, BOOLEAN, STRING, NIL, UNKNOWN;
+
+    Type join(Type other) {
+      return this == other ? this : UNKNOWN;
+    }
+  }
+
+  private static class Binding {
+    final int function;
+    boolean unstable = false;
+
+    Binding(int function) {
+      this.function = function;
+    }
+  }
+
+  private final List<Map<String, Binding>> scopes = new ArrayList<>();
+  private Map<Binding, Type> state = new HashMap<>();
+  private List<Map<Binding, Type>> breaks = null;
+  private int function = 0;
+  private boolean recording = true;
+
+  private int expressions = 0;
+  private int typed = 0;
+
+  void infer(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      infer(statement);
+    }
+  }
+
+  /**
+   * @return a line like "typed expressions: 12/40 (30.0%)"
+   */
+  String report() {
+    double percent = expressions == 0 ? 0 : 100.0 * typed / expressions;
+    return String.format("typed expressions: %d/%d (%.1f%%)", typed, expressions, percent);
+  }
+
+  private void infer(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private Type infer(Expr expr) {
+    Type type = expr.accept(this);
+    if (recording) {
+      expr.type = type;
+      expressions++;
+      if (type != Type.UNKNOWN)
+        typed++;
+    }
+    return type;
+  }
+
+  private void beginScope() {
+    scopes.add(new HashMap<>());
+  }
+
+  private void endScope() {
+    Map<String, Binding> scope = scopes.remove(scopes.size() - 1);
+    for (Binding binding : scope.values()) {
+      state.remove(binding);
+    }
+  }
+
+  private Binding declare(Token name, Type type) {
+    if (scopes.isEmpty())
+      return null;
+
+    // Declaring a name again in the same scope still means the same variable.
+    Map<String, Binding> scope = scopes.get(scopes.size() - 1);
+    Binding binding = scope.get(name.lexeme);
+    if (binding == null) {
+      binding = new Binding(function);
+      scope.put(name.lexeme, binding);
+    }
+    state.put(binding, type);
+    return binding;
+  }
+
+  private Binding lookUp(String name) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Binding binding = scopes.get(i).get(name);
+      if (binding != null)
+        return binding;
+    }
+    return null;
+  }
+
+  private Type typeOf(Binding binding) {
+    if (binding == null || binding.unstable || binding.function != function)
+      return Type.UNKNOWN;
+    return state.getOrDefault(binding, Type.UNKNOWN);
+  }
+
+  private static Map<Binding, Type> join(Map<Binding, Type> a, Map<Binding, Type> b) {
+    Map<Binding, Type> result = new HashMap<>();
+    for (Map.Entry<Binding, Type> entry : a.entrySet()) {
+      Type other = b.get(entry.getKey());
+      if (other != null) {
+        result.put(entry.getKey(), entry.getValue().join(other));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    infer(stmt.statements);
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    if (breaks != null)
+      breaks.add(new HashMap<>(state));
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    declare(stmt.name, Type.UNKNOWN);
+    if (stmt.superclass != null)
+      infer(stmt.superclass);
+
+    for (Stmt.Function method : stmt.methods) {
+      inferFunction(method);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    infer(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitForInStmt(Stmt.ForIn stmt) {
+    infer(stmt.iterable);
+    loop(null, () -> {
+      beginScope();
+      declare(stmt.name, Type.UNKNOWN);
+      infer(stmt.body);
+      endScope();
+    });
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    declare(stmt.name, Type.UNKNOWN);
+    inferFunction(stmt);
+    return null;
+  }
+
+  private void inferFunction(Stmt.Function stmt) {
+    if (stmt.body instanceof LazyBody && !((LazyBody) stmt.body).isParsed()) {
+      // We cannot see inside, so assume it writes every name it assigns.
+      for (String name : ((LazyBody) stmt.body).assignedNames()) {
+        Binding binding = lookUp(name);
+        if (binding != null)
+          binding.unstable = true;
+      }
+      return;
+    }
+
+    Map<Binding, Type> enclosingState = state;
+    List<Map<Binding, Type>> enclosingBreaks = breaks;
+    state = new HashMap<>();
+    breaks = null;
+    function++;
+
+    beginScope();
+    for (Token param : stmt.params) {
+      declare(param, Type.UNKNOWN);
+    }
+    infer(stmt.body);
+    endScope();
+
+    function--;
+    state = enclosingState;
+    breaks = enclosingBreaks;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    infer(stmt.condition);
+
+    Map<Binding, Type> before = state;
+    state = new HashMap<>(before);
+    infer(stmt.thenBranch);
+    Map<Binding, Type> thenState = state;
+
+    state = new HashMap<>(before);
+    if (stmt.elseBranch != null)
+      infer(stmt.elseBranch);
+
+    state = join(thenState, state);
+    return null;
+  }
+
+  @Override
+  public Void visitImportStmt(Stmt.Import stmt) {
+    declare(stmt.name, Type.UNKNOWN);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    infer(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value != null)
+      infer(stmt.value);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    // Like the Resolver, the initializer already sees the new, still nil variable.
+    Binding binding = declare(stmt.name, Type.NIL);
+    if (stmt.initializer != null) {
+      Type type = infer(stmt.initializer);
+      if (binding != null)
+        state.put(binding, type);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    loop(stmt.condition, () -> infer(stmt.body));
+    return null;
+  }
+
+  @Override
+  public Void visitYieldStmt(Stmt.Yield stmt) {
+    infer(stmt.value);
+    return null;
+  }
+
+  /**
+   * @param condition what is tested before every iteration, or null
+   * @param body      infers one iteration of the body
+   */
+  private void loop(Expr condition, Runnable body) {
+    List<Map<Binding, Type>> enclosingBreaks = breaks;
+    boolean enclosingRecording = recording;
+
+    // Widen the types at the loop head until another iteration changes nothing.
+    recording = false;
+    Map<Binding, Type> head = new HashMap<>(state);
+    while (true) {
+      state = new HashMap<>(head);
+      breaks = new ArrayList<>();
+      if (condition != null)
+        infer(condition);
+      body.run();
+
+      Map<Binding, Type> next = join(head, state);
+      if (next.equals(head))
+        break;
+      head = next;
+    }
+    recording = enclosingRecording;
+
+    state = new HashMap<>(head);
+    breaks = new ArrayList<>();
+    if (condition != null)
+      infer(condition);
+    Map<Binding, Type> exit = new HashMap<>(state);
+    body.run();
+
+    for (Map<Binding, Type> broken : breaks) {
+      exit = join(exit, broken);
+    }
+    state = exit;
+    breaks = enclosingBreaks;
+  }
+
+  @Override
+  public Type visitAssignExpr(Expr.Assign expr) {
+    Type type = infer(expr.value);
+
+    Binding binding = lookUp(expr.name.lexeme);
+    if (binding != null) {
+      if (binding.function != function) {
+        binding.unstable = true;
+      } else {
+        state.put(binding, type);
+      }
+    }
+    return type;
+  }
+
+  @Override
+  public Type visitBinaryExpr(Expr.Binary expr) {
+    Type left = infer(expr.left);
+    Type right = infer(expr.right);
+
+    switch (expr.operator.type) {
+    case GREATER:
+    case GREATER_EQUAL:
+    case LESS:
+    case LESS_EQUAL:
+    case BANG_EQUAL:
+    case EQUAL_EQUAL:
+      return Type.BOOLEAN;
+    case MINUS:
+    case SLASH:
+    case STAR:
+      return Type.NUMBER;
+    case PLUS:
+      if (left == Type.NUMBER && right == Type.NUMBER)
+        return Type.NUMBER;
+      if (left == Type.STRING || right == Type.STRING)
+        return Type.STRING;
+      return Type.UNKNOWN;
+    }
+
+    // Unreachable.
+    return Type.UNKNOWN;
+  }
+
+  @Override
+  public Type visitCallExpr(Expr.Call expr) {
+    infer(expr.callee);
+    for (Expr argument : expr.arguments) {
+      infer(argument);
+    }
+    return Type.UNKNOWN;
+  }
+
+  @Override
+  public Type visitGetExpr(Expr.Get expr) {
+    infer(expr.object);
+    return Type.UNKNOWN;
+  }
+
+  @Override
+  public Type visitGroupingExpr(Expr.Grouping expr) {
+    return infer(expr.expression);
+  }
+
+  @Override
+  public Type visitIndexExpr(Expr.Index expr) {
+    infer(expr.object);
+    infer(expr.index);
+    return Type.UNKNOWN;
+  }
+
+  @Override
+  public Type visitIndexSetExpr(Expr.IndexSet expr) {
+    infer(expr.object);
+    infer(expr.index);
+    return infer(expr.value);
+  }
+
+  @Override
+  public Type visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null)
+      return Type.NIL;
+    if (Values.isNumber(expr.value))
+      return Type.NUMBER;
+    if (expr.value instanceof Boolean)
+      return Type.BOOLEAN;
+    if (expr.value instanceof String)
+      return Type.STRING;
+    return Type.UNKNOWN;
+  }
+
+  @Override
+  public Type visitLogicalExpr(Expr.Logical expr) {
+    Type left = infer(expr.left);
+
+    // The right operand only runs sometimes.
+    Map<Binding, Type> before = new HashMap<>(state);
+    Type right = infer(expr.right);
+    state = join(before, state);
+
+    return left.join(right);
+  }
+
+  @Override
+  public Type visitSetExpr(Expr.Set expr) {
+    infer(expr.object);
+    return infer(expr.value);
+  }
+
+  @Override
+  public Type visitSuperExpr(Expr.Super expr) {
+    return Type.UNKNOWN;
+  }
+
+  @Override
+  public Type visitThisExpr(Expr.This expr) {
+    return Type.UNKNOWN;
+  }
+
+  @Override
+  public Type visitUnaryExpr(Expr.Unary expr) {
+    infer(expr.right);
+
+    switch (expr.operator.type) {
+    case BANG:
+      return Type.BOOLEAN;
+    case MINUS:
+      return Type.NUMBER;
+    }
+
+    // Unreachable.
+    return Type.UNKNOWN;
+  }
+
+  @Override
+  public Type visitVariableExpr(Expr.Variable expr) {
+    return typeOf(lookUp(expr.name.lexeme));
+  }
+}
@@ -0,0 +1,201 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lox numbers at runtime. <br />
+ * <br />
+ *
+ * A number that holds an integer is a {@link Long}, and any other number is a
+ * {@link Double}. Only integers that a double represents exactly, up to 2^53,
+ * are kept as longs, and negative zero is always a double, so doing the
+ * arithmetic on longs gives exactly the result doubles would have given. When
+ * a result leaves that range it is computed with doubles instead. <br />
+ * <br />
+ *
+ * Lox code cannot tell the two kinds apart: they compare, print and test for
+ * equality the same way as the double with the same value. <br />
+ * <br />
+ *
+ * All numbers the interpreter computes are boxed here. Small integers, halves
+ * like 0.5 and 2.5, negative zero, infinities and NaN come from caches, so
+ * the same number is usually the same object and equality can often stop at
+ * an identity check. With --alloc-stats the boxes that were allocated and the
+ * ones that came from a cache are counted.
+ */
+final class Values {
+  static final long MAX_EXACT = 1L << 53;
+
+  private static final int CACHE_LOW = -128;
+  private static final Long[] LONGS = new Long[1024 - CACHE_LOW];
+
+  /**
+   * Doubles that are an odd number of halves, indexed by twice their value.
+   */
+  private static final int HALVES_LOW = -256;
+  private static final Double[] HALVES = new Double[512];
+
+  private static final Double NEGATIVE_ZERO = -0.0;
+  private static final Double NAN = Double.NaN;
+  private static final Double POSITIVE_INFINITY = Double.POSITIVE_INFINITY;
+  private static final Double NEGATIVE_INFINITY = Double.NEGATIVE_INFINITY;
+
+  static {
+    for (int i = 0; i < LONGS.length; i++) {
+      LONGS[i] = (long) (i + CACHE_LOW);
+    }
+    for (int i = 0; i < HALVES.length; i++) {
+      HALVES[i] = (i + HALVES_LOW) / 2.0;
+    }
+  }
+
+  private static boolean counting = false;
+  private static final LongAdder allocated = new LongAdder();
+  private static final LongAdder cached = new LongAdder();
+
+  private Values() {
+  }
+
+  static void countAllocations() {
+    counting = true;
+  }
+
+  /**
+   * @return a line like "number boxes: 120 allocated, 9880 cached (98.8%)"
+   */
+  static String report() {
+    long fresh = allocated.sum();
+    long reused = cached.sum();
+    double percent = fresh + reused == 0 ? 0 : 100.0 * reused / (fresh + reused);
+    return String.format("number boxes: %d allocated, %d cached (%.1f%%)", fresh, reused, percent);
+  }
+
+  static boolean isNumber(Object value) {
+    return value instanceof Long || value instanceof Double;
+  }
+
+  /**
+   * @param value a Long or Double
+   * @return its value as a double
+   */
+  static double toDouble(Object value) {
+    if (value instanceof Long)
+      return (long) value;
+    return (double) value;
+  }
+
+  /**
+   * @param value a number
+   * @return the value as a Long if it is an integer in range, otherwise as a
+   *         Double
+   */
+  static Object number(double value) {
+    long integer = (long) value;
+    if (integer == value && integer <= MAX_EXACT && integer >= -MAX_EXACT
+        && (integer != 0 || Double.doubleToRawLongBits(value) == 0)) {
+      return number(integer);
+    }
+
+    Double box = cachedDouble(value);
+    if (box != null) {
+      if (counting)
+        cached.increment();
+      return box;
+    }
+    if (counting)
+      allocated.increment();
+    return Double.valueOf(value);
+  }
+
+  /**
+   * @param value a number that is not an integer in the exact range
+   * @return the cached box for it, or null
+   */
+  private static Double cachedDouble(double value) {
+    // Positive zero is an integer, so this can only be negative zero.
+    if (value == 0)
+      return NEGATIVE_ZERO;
+
+    double twice = value * 2;
+    int index = (int) twice - HALVES_LOW;
+    if (twice == (int) twice && index >= 0 && index < HALVES.length)
+      return HALVES[index];
+
+    if (value != value)
+      return NAN;
+    if (value == Double.POSITIVE_INFINITY)
+      return POSITIVE_INFINITY;
+    if (value == Double.NEGATIVE_INFINITY)
+      return NEGATIVE_INFINITY;
+    return null;
+  }
+
+  /**
+   * @param value an integer
+   * @return the value as a Long if it is in range, otherwise as a Double
+   */
+  static Object number(long value) {
+    if (value >= CACHE_LOW && value < LONGS.length + CACHE_LOW) {
+      if (counting)
+        cached.increment();
+      return LONGS[(int) value - CACHE_LOW];
+    }
+    if (value > MAX_EXACT || value < -MAX_EXACT)
+      return number((double) value);
+
+    if (counting)
+      allocated.increment();
+    return Long.valueOf(value);
+  }
+
+  static Object add(long left, long right) {
+    // Both operands are at most 2^53, so the sum cannot overflow.
+    return number(left + right);
+  }
+
+  static Object subtract(long left, long right) {
+    return number(left - right);
+  }
+
+  static Object multiply(long left, long right) {
+    long result;
+    try {
+      result = Math.multiplyExact(left, right);
+    } catch (ArithmeticException error) {
+      return number((double) left * (double) right);
+    }
+
+    if (result == 0 && (left < 0 || right < 0))
+      return number(-0.0);
+    if (result > MAX_EXACT || result < -MAX_EXACT)
+      return number((double) left * (double) right);
+    return number(result);
+  }
+
+  /**
+   * @param right a divisor other than zero
+   */
+  static Object divide(long left, long right) {
+    if (left % right != 0 || (left == 0 && right < 0))
+      return number((double) left / (double) right);
+    return number(left / right);
+  }
+
+  static Object negate(long value) {
+    if (value == 0)
+      return number(-0.0);
+    return number(-value);
+  }
+
+  /**
+   * Numbers are equal the way {@link Double#equals} says the same doubles are,
+   * so NaN equals itself and zero does not equal negative zero.
+   */
+  static boolean numbersEqual(Object left, Object right) {
+    if (left == right)
+      return true;
+    if (left instanceof Long && right instanceof Long)
+      return (long) left == (long) right;
+    return Double.doubleToLongBits(toDouble(left)) == Double.doubleToLongBits(toDouble(right));
+  }
+}
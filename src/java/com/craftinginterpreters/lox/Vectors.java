@@ -0,0 +1,263 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * The bulk numeric natives: add, multiply, dot, sum, min, max and axpy over
+ * arrays of numbers and buffers of doubles. <br />
+ * <br />
+ *
+ * They run over the double[] of a {@link LoxArray} without boxing a single
+ * element, so a script keeps its control flow in Lox and hands the inner loops
+ * to Java. The element-wise loops are plain counted loops, which the JIT turns
+ * into SIMD instructions by itself. A sum is a chain of additions that it may
+ * not reorder, so the reductions keep four partial sums that the processor can
+ * work on at once. That rounds differently from adding the elements one by one,
+ * by about as much as the order of the elements would. <br />
+ * <br />
+ *
+ * When a {@link LoxBuffer} is involved, every operand is read through a
+ * {@link DoubleBuffer} instead, which the JIT does not vectorize, and adding
+ * to or multiplying a buffer makes a new buffer.
+ */
+final class Vectors {
+  private Vectors() {
+  }
+
+  /**
+   * @param left  an array of numbers or a buffer
+   * @param right an array of numbers or a buffer as long, or a number to add
+   *              to every element
+   * @return a new array, or buffer, of the sums
+   */
+  static Object add(Object left, Object right) {
+    if (left instanceof LoxBuffer || right instanceof LoxBuffer)
+      return elementwise(left, right, false, "add");
+
+    LoxArray array = LoxArray.cast(left, "add");
+    double[] a = array.numbers("add");
+    int size = array.size();
+    double[] result = new double[size];
+
+    if (Values.isNumber(right)) {
+      double b = Values.toDouble(right);
+      for (int i = 0; i < size; i++) {
+        result[i] = a[i] + b;
+      }
+    } else {
+      double[] b = operand(right, size, "add");
+      for (int i = 0; i < size; i++) {
+        result[i] = a[i] + b[i];
+      }
+    }
+    return LoxArray.of(result, size);
+  }
+
+  /**
+   * @param left  an array of numbers or a buffer
+   * @param right an array of numbers or a buffer as long, or a number to
+   *              multiply every element by
+   * @return a new array, or buffer, of the products
+   */
+  static Object multiply(Object left, Object right) {
+    if (left instanceof LoxBuffer || right instanceof LoxBuffer)
+      return elementwise(left, right, true, "multiply");
+
+    LoxArray array = LoxArray.cast(left, "multiply");
+    double[] a = array.numbers("multiply");
+    int size = array.size();
+    double[] result = new double[size];
+
+    if (Values.isNumber(right)) {
+      double b = Values.toDouble(right);
+      for (int i = 0; i < size; i++) {
+        result[i] = a[i] * b;
+      }
+    } else {
+      double[] b = operand(right, size, "multiply");
+      for (int i = 0; i < size; i++) {
+        result[i] = a[i] * b[i];
+      }
+    }
+    return LoxArray.of(result, size);
+  }
+
+  static Object dot(Object left, Object right) {
+    if (left instanceof LoxBuffer || right instanceof LoxBuffer) {
+      DoubleBuffer a = view(left, "dot");
+      DoubleBuffer b = sameLength(view(right, "dot"), a.limit(), "dot");
+      double sum = 0;
+      for (int i = 0; i < a.limit(); i++) {
+        sum += a.get(i) * b.get(i);
+      }
+      return Values.number(sum);
+    }
+
+    LoxArray array = LoxArray.cast(left, "dot");
+    double[] a = array.numbers("dot");
+    int size = array.size();
+    double[] b = operand(right, size, "dot");
+
+    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int i = 0;
+    for (; i + 3 < size; i += 4) {
+      s0 += a[i] * b[i];
+      s1 += a[i + 1] * b[i + 1];
+      s2 += a[i + 2] * b[i + 2];
+      s3 += a[i + 3] * b[i + 3];
+    }
+    for (; i < size; i++) {
+      s0 += a[i] * b[i];
+    }
+    return Values.number((s0 + s1) + (s2 + s3));
+  }
+
+  static Object sum(Object value) {
+    if (!(value instanceof LoxBuffer))
+      return LoxArray.cast(value, "sum").sum();
+
+    DoubleBuffer numbers = view(value, "sum");
+    double sum = 0;
+    for (int i = 0; i < numbers.limit(); i++) {
+      sum += numbers.get(i);
+    }
+    return Values.number(sum);
+  }
+
+  static double sum(double[] numbers, int size) {
+    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int i = 0;
+    for (; i + 3 < size; i += 4) {
+      s0 += numbers[i];
+      s1 += numbers[i + 1];
+      s2 += numbers[i + 2];
+      s3 += numbers[i + 3];
+    }
+    for (; i < size; i++) {
+      s0 += numbers[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  static Object min(Object value) {
+    if (value instanceof LoxBuffer) {
+      DoubleBuffer numbers = nonEmpty(value, "min");
+      double min = numbers.get(0);
+      for (int i = 1; i < numbers.limit(); i++) {
+        min = Math.min(min, numbers.get(i));
+      }
+      return Values.number(min);
+    }
+
+    LoxArray array = LoxArray.cast(value, "min");
+    double[] numbers = nonEmpty(array, "min");
+    double min = numbers[0];
+    for (int i = 1; i < array.size(); i++) {
+      min = Math.min(min, numbers[i]);
+    }
+    return Values.number(min);
+  }
+
+  static Object max(Object value) {
+    if (value instanceof LoxBuffer) {
+      DoubleBuffer numbers = nonEmpty(value, "max");
+      double max = numbers.get(0);
+      for (int i = 1; i < numbers.limit(); i++) {
+        max = Math.max(max, numbers.get(i));
+      }
+      return Values.number(max);
+    }
+
+    LoxArray array = LoxArray.cast(value, "max");
+    double[] numbers = nonEmpty(array, "max");
+    double max = numbers[0];
+    for (int i = 1; i < array.size(); i++) {
+      max = Math.max(max, numbers[i]);
+    }
+    return Values.number(max);
+  }
+
+  /**
+   * Adds a times x to y, element by element, in place.
+   */
+  static void axpy(Object a, Object x, Object y) {
+    double scale = NativeFunction.number(a, "axpy");
+    if (x instanceof LoxBuffer || y instanceof LoxBuffer) {
+      DoubleBuffer from = view(x, "axpy");
+      DoubleBuffer to = sameLength(view(y, "axpy"), from.limit(), "axpy");
+      for (int i = 0; i < from.limit(); i++) {
+        to.put(i, to.get(i) + scale * from.get(i));
+      }
+      return;
+    }
+
+    LoxArray xs = LoxArray.cast(x, "axpy");
+    double[] from = xs.numbers("axpy");
+    int size = xs.size();
+    double[] to = operand(y, size, "axpy");
+
+    for (int i = 0; i < size; i++) {
+      to[i] += scale * from[i];
+    }
+  }
+
+  private static Object elementwise(Object left, Object right, boolean multiply, String function) {
+    DoubleBuffer a = view(left, function);
+    int size = a.limit();
+    DoubleBuffer b = Values.isNumber(right) ? null : sameLength(view(right, function), size, function);
+    double scalar = b == null ? Values.toDouble(right) : 0;
+
+    LoxBuffer buffer = left instanceof LoxBuffer ? LoxBuffer.allocate(size * Double.BYTES) : null;
+    DoubleBuffer result = buffer != null ? buffer.doubles() : DoubleBuffer.allocate(size);
+    for (int i = 0; i < size; i++) {
+      double x = a.get(i);
+      double y = b == null ? scalar : b.get(i);
+      result.put(i, multiply ? x * y : x + y);
+    }
+    return buffer != null ? buffer : LoxArray.of(result.array(), size);
+  }
+
+  /**
+   * @return the numbers of an array that has as many elements as the first
+   *         operand
+   */
+  private static double[] operand(Object value, int size, String function) {
+    LoxArray array = LoxArray.cast(value, function);
+    if (array.size() != size)
+      throw new NativeError("Expected arrays of the same length to " + function + "().");
+    return array.numbers(function);
+  }
+
+  /**
+   * @return the elements of an array or the doubles in a buffer, up to the
+   *         limit of the view
+   */
+  private static DoubleBuffer view(Object value, String function) {
+    if (value instanceof LoxBuffer)
+      return ((LoxBuffer) value).doubles();
+    if (!(value instanceof LoxArray))
+      throw new NativeError("Expected an array or buffer argument to " + function + "().");
+
+    LoxArray array = (LoxArray) value;
+    return DoubleBuffer.wrap(array.numbers(function), 0, array.size()).slice();
+  }
+
+  private static DoubleBuffer sameLength(DoubleBuffer view, int size, String function) {
+    if (view.limit() != size)
+      throw new NativeError("Expected operands of the same length to " + function + "().");
+    return view;
+  }
+
+  private static DoubleBuffer nonEmpty(Object value, String function) {
+    DoubleBuffer numbers = view(value, function);
+    if (numbers.limit() == 0)
+      throw new NativeError("Expected a non-empty buffer to " + function + "().");
+    return numbers;
+  }
+
+  private static double[] nonEmpty(LoxArray array, String function) {
+    if (array.size() == 0)
+      throw new NativeError("Expected a non-empty array to " + function + "().");
+    return array.numbers(function);
+  }
+}
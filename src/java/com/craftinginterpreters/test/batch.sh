@@ -0,0 +1,47 @@
+#!/bin/sh
+# Checks jlox --batch: every script of corpus.txt passes, --output writes what
+# each printed, and the scripts in batch/, which print another line or end in
+# another error than they expect, fail the batch.
+#
+#   JLOX="java -cp classes com.craftinginterpreters.lox.Lox" sh test/batch.sh
+
+JLOX=${JLOX:-jlox}
+cd "$(dirname "$0")" || exit 1
+dir=$(mktemp -d) || exit 1
+trap 'rm -rf "$dir"' EXIT
+
+failed=0
+check() {
+  if [ "$2" != "$3" ]; then
+    echo "$1: expected $3, got $2."
+    failed=1
+  fi
+}
+
+$JLOX --batch --output="$dir/out" corpus.txt > "$dir/table"
+check "corpus.txt, status" $? 0
+
+for script in $(grep -v '^#' corpus.txt | cut -d ' ' -f 1); do
+  out=$dir/out/${script%.lox}.out
+  if [ ! -f "$out" ]; then
+    echo "$script: no output file."
+    failed=1
+    continue
+  fi
+  # The output comes first, then the error the script ends in.
+  sed -n 's|.*// expect: \{0,1\}||p' "$script" > "$dir/expected"
+  head -n "$(wc -l < "$dir/expected")" "$out" > "$dir/printed"
+  if ! cmp -s "$dir/printed" "$dir/expected"; then
+    echo "$script, output file:"
+    diff "$dir/expected" "$dir/printed"
+    failed=1
+  fi
+done
+
+$JLOX --batch batch > "$dir/table"
+check "batch/, status" $? 70
+check "wrong_error.lox" "$(grep -c 'wrong_error.lox  *runtime error' "$dir/table")" 1
+check "wrong_output.lox" "$(grep -c 'wrong_output.lox  *wrong output' "$dir/table")" 1
+
+[ $failed -eq 0 ] && echo "batch: ok"
+exit $failed
@@ -0,0 +1,57 @@
+#!/bin/sh
+# Checks jlox --server and --connect: a script sent to a server prints what its
+# expect comments say, a second run comes from the cache, and the client exits
+# with the status the command line would have.
+#
+#   JLOX="java -cp classes com.craftinginterpreters.lox.Lox" sh test/server.sh
+
+JLOX=${JLOX:-jlox}
+cd "$(dirname "$0")" || exit 1
+dir=$(mktemp -d) || exit 1
+socket=$dir/jlox.sock
+
+$JLOX --server --socket="$socket" &
+server=$!
+trap 'kill $server 2>/dev/null; rm -rf "$dir"' EXIT
+
+tries=0
+while [ ! -S "$socket" ]; do
+  tries=$((tries + 1))
+  if [ $tries -gt 100 ]; then
+    echo "The server didn't start."
+    exit 1
+  fi
+  sleep 0.1
+done
+
+failed=0
+check() {
+  if [ "$2" != "$3" ]; then
+    echo "$1: expected $3, got $2."
+    failed=1
+  fi
+}
+
+sed -n 's|.*// expect: \{0,1\}||p' arrays.lox > "$dir/expected"
+for run in first second; do
+  $JLOX --connect --socket="$socket" arrays.lox > "$dir/out" 2> "$dir/err"
+  check "arrays.lox, $run run, status" $? 70
+  if ! cmp -s "$dir/out" "$dir/expected"; then
+    echo "arrays.lox, $run run, output:"
+    diff "$dir/expected" "$dir/out"
+    failed=1
+  fi
+  check "arrays.lox, $run run, error" "$(head -n 1 "$dir/err")" "Array index 5 is out of bounds."
+done
+
+echo 'print ;' > "$dir/broken.lox"
+$JLOX --connect --socket="$socket" "$dir/broken.lox" > /dev/null 2>&1
+check "broken.lox, status" $? 65
+
+kill $server
+wait $server 2>/dev/null
+$JLOX --connect --socket="$socket" arrays.lox > /dev/null 2>&1
+check "without a server, status" $? 69
+
+[ $failed -eq 0 ] && echo "server: ok"
+exit $failed
@@ -0,0 +1,45 @@
+#!/bin/sh
+# Checks jlox --snapshot and --restore: snapshot/prelude.lox is saved, and
+# snapshot/restored.lox, run on the snapshot, prints what its expect comments
+# say. A file that is not a snapshot is refused.
+#
+#   JLOX="java -cp classes com.craftinginterpreters.lox.Lox" sh test/snapshot.sh
+
+JLOX=${JLOX:-jlox}
+cd "$(dirname "$0")/snapshot" || exit 1
+dir=$(mktemp -d) || exit 1
+trap 'rm -rf "$dir"' EXIT
+
+failed=0
+check() {
+  if [ "$2" != "$3" ]; then
+    echo "$1: expected $3, got $2."
+    failed=1
+  fi
+}
+
+# Compares what a script printed with its expect comments. The command line
+# echoes comments, which the comparison leaves out.
+compare() {
+  sed -n 's|.*// expect: \{0,1\}||p' "$1" > "$dir/expected"
+  grep -v '^Comment: ' "$dir/out" > "$dir/printed"
+  if ! cmp -s "$dir/printed" "$dir/expected"; then
+    echo "$1, output:"
+    diff "$dir/expected" "$dir/printed"
+    failed=1
+  fi
+}
+
+$JLOX --snapshot="$dir/prelude.snapshot" prelude.lox > "$dir/out"
+check "prelude.lox, status" $? 0
+compare prelude.lox
+
+$JLOX --restore="$dir/prelude.snapshot" restored.lox > "$dir/out"
+check "restored.lox, status" $? 0
+compare restored.lox
+
+$JLOX --restore=prelude.lox restored.lox > /dev/null 2>&1
+check "restoring a script, status" $? 66
+
+[ $failed -eq 0 ] && echo "snapshot: ok"
+exit $failed
@@ -18,38 +18,56 @@ public class GenerateAst {
     String outputDir = args[0];
 
     defineAst(outputDir, "Expr", Arrays.asList(
+        "TypeInference.Type type",
+        "int hoisted = -1"
+    ), Arrays.asList(
         "Assign   : Token name, Expr value",
         "Binary   : Expr left, Token operator, Expr right",
         "Call     : Expr callee, Token paren, List<Expr> arguments",
+        "Get      : Expr object, Token name, PropertyCache cache",
         "Grouping : Expr expression",
+        "Index    : Expr object, Token bracket, Expr index",
+        "IndexSet : Expr object, Token bracket, Expr index, Expr value",
         "Literal  : Object value",
         "Logical  : Expr left, Token operator, Expr right",
+        "Set      : Expr object, Token name, Expr value, PropertyCache cache",
+        "Super    : Token keyword, Token method, This receiver",
+        "This     : Token keyword",
         "Unary    : Token operator, Expr right",
         "Variable : Token name"
     ));
     
-    defineAst(outputDir, "Stmt", Arrays.asList(
+    defineAst(outputDir, "Stmt", Arrays.asList(), Arrays.asList(
         "Block      : List<Stmt> statements",
         "Break      : Token keyword",
+        "Class      : Token name, Expr.Variable superclass," +
+                    " List<Stmt.Function> methods",
         "Expression : Expr expression",
+        "ForIn      : Token keyword, Token name, Expr iterable," +
+                    " Stmt body",
         "Function   : Token name, List<Token> params," +
-                    " List<Stmt> body",
+                    " List<Stmt> body, boolean generator",
         "If         : Expr condition, Stmt thenBranch," +
                     " Stmt elseBranch",
+        "Import     : Token keyword, Token path, Token name",
         "Print      : Expr expression",
         "Return     : Token keyword, Expr value",
         "Var        : Token name, Expr initializer",
-        "While      : Expr condition, Stmt body"
+        "While      : Expr condition, Stmt body",
+        "Yield      : Token keyword, Expr value"
     ));
   }
 
   /**
    * @param outputDir
    * @param baseName
+   * @param baseFields mutable fields shared by every node, filled in by later
+   *                   passes
    * @param types
    * @throws IOException
    */
-  private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
+  private static void defineAst(String outputDir, String baseName, List<String> baseFields, List<String> types)
+      throws IOException {
     String path = outputDir + "/" + baseName + ".java";
     PrintWriter writer = new PrintWriter(path, "UTF-8");
 
@@ -74,6 +92,14 @@ public class GenerateAst {
     // The base accept() method.
     writer.println();
     writer.println("  abstract <R> R accept(Visitor<R> visitor);");
+
+    // Fields filled in after parsing.
+    if (!baseFields.isEmpty()) {
+      writer.println();
+      for (String field : baseFields) {
+        writer.println("  " + field + ";");
+      }
+    }
     writer.println("}");
     writer.close();
   }